@@ -0,0 +1,246 @@
+package com.peterponterio.flickrbrowser;
+
+import android.content.Context;
+import android.os.Build;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+import android.widget.FrameLayout;
+import android.widget.ImageView;
+
+import com.squareup.picasso.Callback;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Measures how fast feeds are fetched, parsed and rendered, using MockFlickrServer instead of the
+ * real flickr so the numbers can be repeated offline. Results are written to logcat with the tag
+ * FeedThroughputTest.
+ */
+@RunWith(AndroidJUnit4.class)
+public class FeedThroughputTest {
+    private static final String TAG = "FeedThroughputTest";
+
+    private static final int RUNS = 5;
+
+    //well under what four cores should manage, so a busy device doesn't fail it
+    private static final double MIN_PARALLEL_SPEEDUP = 1.2;
+
+    private MockFlickrServer mServer;
+
+    @Before
+    public void setUp() throws Exception {
+        mServer = new MockFlickrServer();
+        mServer.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mServer.shutdown();
+    }
+
+
+    //downloads a url on this thread the same way GetFlickrJsonData does
+    private String fetch(String url) {
+        final String[] result = new String[1];
+        GetRawData getRawData = new GetRawData(new GetRawData.OnDownloadComplete() {
+            @Override
+            public void onDownloadComplete(String data, DownloadStatus status) {
+                result[0] = (status == DownloadStatus.OK) ? data : null;
+            }
+        });
+        getRawData.runInSameThread(url);
+        return result[0];
+    }
+
+
+    private List<Photo> parse(String data) {
+        return parse(data, true);
+    }
+
+    private List<Photo> parse(String data, boolean parallel) {
+        GetFlickrJsonData parser = new GetFlickrJsonData(null, mServer.getFeedUrl(), "en-us", true);
+        parser.setParallelParsing(parallel);
+        parser.onDownloadComplete(data, DownloadStatus.OK);
+        return parser.getPhotoList();
+    }
+
+
+    @Test
+    public void fetchAndParseThroughput() throws Exception {
+        mServer.setItemCount(500);
+
+        //one run to warm up the connection and the jit before timing anything
+        parse(fetch(mServer.getFeedUrl()));
+
+        long fetchNanos = 0;
+        long parseNanos = 0;
+        long bytes = 0;
+        for(int i = 0; i < RUNS; i++) {
+            long start = System.nanoTime();
+            String data = fetch(mServer.getFeedUrl());
+            long fetched = System.nanoTime();
+            List<Photo> photos = parse(data);
+            long parsed = System.nanoTime();
+
+            assertNotNull(data);
+            assertEquals(500, photos.size());
+            bytes += data.length();
+            fetchNanos += fetched - start;
+            parseNanos += parsed - fetched;
+        }
+
+        Log.i(TAG, "fetch: " + (bytes * 1000000000L / 1024 / fetchNanos) + " KB/s, "
+                + (fetchNanos / RUNS / 1000000) + "ms per feed");
+        Log.i(TAG, "parse: " + (500L * RUNS * 1000000000L / parseNanos) + " items/s, "
+                + (parseNanos / RUNS / 1000000) + "ms per feed");
+    }
+
+
+    /*
+        parses the same big feed with and without splitting it across the cores. Both have to come out
+        the same. With four or more cores the parallel parse has to be at least MIN_PARALLEL_SPEEDUP
+        times as fast, with fewer it's only logged because there's only one or two threads to split it
+        across. A feed bigger than the recent photo cache is used so both ways have to build most of the
+        photos rather than reusing them
+     */
+    @Test
+    public void parallelParseSpeedup() throws Exception {
+        if(Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            return;
+        }
+        mServer.setItemCount(2000);
+        String data = fetch(mServer.getFeedUrl());
+        assertNotNull(data);
+
+        //one of each to warm up the jit and the pool before timing anything
+        List<Photo> sequential = parse(data, false);
+        List<Photo> parallel = parse(data, true);
+
+        assertEquals(2000, sequential.size());
+        assertEquals(sequential.size(), parallel.size());
+        for(int i = 0; i < sequential.size(); i++) {
+            assertEquals(sequential.get(i).getImage(), parallel.get(i).getImage());
+            assertEquals(sequential.get(i).getTitle(), parallel.get(i).getTitle());
+        }
+
+        long sequentialNanos = 0;
+        long parallelNanos = 0;
+        for(int i = 0; i < RUNS; i++) {
+            long start = System.nanoTime();
+            parse(data, false);
+            long sequentialDone = System.nanoTime();
+            parse(data, true);
+            parallelNanos += System.nanoTime() - sequentialDone;
+            sequentialNanos += sequentialDone - start;
+        }
+
+        Log.i(TAG, "parallel parse: " + (sequentialNanos / RUNS / 1000000) + "ms sequential, "
+                + (parallelNanos / RUNS / 1000000) + "ms parallel, "
+                + String.format(Locale.US, "%.2f", (double) sequentialNanos / parallelNanos) + "x on "
+                + Runtime.getRuntime().availableProcessors() + " cores");
+        if(Runtime.getRuntime().availableProcessors() >= 4) {
+            assertTrue("parallel parse wasn't any faster",
+                    sequentialNanos >= parallelNanos * MIN_PARALLEL_SPEEDUP);
+        }
+    }
+
+
+    @Test
+    public void renderThroughput() throws Exception {
+        mServer.setItemCount(50);
+        final Context context = InstrumentationRegistry.getTargetContext();
+        final List<Photo> photos = parse(fetch(mServer.getFeedUrl()));
+        assertEquals(50, photos.size());
+
+        //bind every photo into its own view holder on the main thread, just like the recyclerView would
+        final long[] bindNanos = new long[1];
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                FrameLayout parent = new FrameLayout(context);
+                FlickrRecyclerViewAdapter adapter = new FlickrRecyclerViewAdapter(context, photos);
+                long start = System.nanoTime();
+                for(int i = 0; i < photos.size(); i++) {
+                    FlickrRecyclerViewAdapter.FlickrImageViewHolder holder =
+                            adapter.onCreateViewHolder(parent, adapter.getItemViewType(i));
+                    adapter.onBindViewHolder(holder, i);
+                }
+                bindNanos[0] = System.nanoTime() - start;
+            }
+        });
+
+        //then time how long it takes for every thumbnail to be downloaded and decoded
+        final CountDownLatch latch = new CountDownLatch(photos.size());
+        final AtomicInteger failures = new AtomicInteger();
+        final List<ImageView> targets = new ArrayList<>(); //picasso only keeps weak references to these
+        long start = System.nanoTime();
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                for(Photo photo : photos) {
+                    ImageView imageView = new ImageView(context);
+                    targets.add(imageView);
+                    ImageLoader.get(context).load(photo.getImage()).into(imageView, new Callback() {
+                        @Override
+                        public void onSuccess() {
+                            latch.countDown();
+                        }
+
+                        @Override
+                        public void onError() {
+                            failures.incrementAndGet();
+                            latch.countDown();
+                        }
+                    });
+                }
+            }
+        });
+        assertTrue(latch.await(60, TimeUnit.SECONDS));
+        long imageNanos = System.nanoTime() - start;
+
+        assertEquals(0, failures.get());
+        Log.i(TAG, "bind: " + (bindNanos[0] / photos.size() / 1000) + "us per row");
+        Log.i(TAG, "images: " + (photos.size() * 1000000000L / imageNanos) + " images/s, "
+                + targets.size() + " thumbnails in " + (imageNanos / 1000000) + "ms");
+    }
+
+
+    @Test
+    public void endToEndOnSlowFlakyConnection() throws Exception {
+        mServer.setItemCount(100);
+        mServer.setLatencyMillis(200);
+        mServer.setBytesPerSecond(64 * 1024);
+        mServer.setErrorRate(0.3f);
+
+        int failures = 0;
+        long start = System.nanoTime();
+        for(int i = 0; i < RUNS * 2; i++) {
+            GetFlickrJsonData getFlickrJsonData = new GetFlickrJsonData(null, mServer.getFeedUrl(), "en-us", true);
+            List<Photo> photos = getFlickrJsonData.doInBackground("mock");
+            if(photos == null) {
+                failures++;
+            } else {
+                assertEquals(100, photos.size());
+            }
+        }
+        long elapsedNanos = System.nanoTime() - start;
+
+        //every request the server failed on purpose should show up as a failed download, and no others
+        assertEquals(mServer.getErrorCount(), failures);
+        Log.i(TAG, "slow connection: " + (elapsedNanos / (RUNS * 2) / 1000000) + "ms per feed, "
+                + failures + " failures");
+    }
+}
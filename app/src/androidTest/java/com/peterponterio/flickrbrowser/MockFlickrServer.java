@@ -0,0 +1,342 @@
+package com.peterponterio.flickrbrowser;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+    A tiny http server that runs inside the test process and pretends to be flickr.
+
+    It answers two kinds of request:
+
+        /services/feeds/photos_public.gne  - a photos_public feed in the same json format flickr uses,
+                                             either generated or a recorded response we've been given
+        /images/<name>_<size>.jpg          - a generated jpeg as wide as flickr's size, so
+                                             100 for "t", 240 for "m", 320 for "n", 640 for "z" and
+                                             1024 for "b"
+
+    The feed size, the delay before each response, the bandwidth and the fraction of requests that fail
+    can all be configured, so the same test can be run against a fast clean connection or a slow flaky
+    one without going anywhere near api.flickr.com.
+ */
+class MockFlickrServer {
+    private static final String TAG = "MockFlickrServer";
+
+    static final String FEED_PATH = "/services/feeds/photos_public.gne";
+    private static final String IMAGE_PATH = "/images/";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    //bytes written between bandwidth checks
+    private static final int WRITE_CHUNK_SIZE = 1024;
+
+    private ServerSocket mServerSocket;
+    private ExecutorService mExecutor;
+    private Thread mAcceptThread;
+
+    private volatile int mItemCount = 20;
+    private volatile long mLatencyMillis = 0;
+    private volatile long mBytesPerSecond = 0;
+    private volatile float mErrorRate = 0f;
+    private volatile String mRecordedFeed = null;
+
+    private final Random mRandom = new Random(42);
+    private final Map<String, byte[]> mImageCache = new HashMap<>();
+    private final AtomicInteger mRequestCount = new AtomicInteger();
+    private final AtomicInteger mErrorCount = new AtomicInteger();
+
+
+    void start() throws IOException {
+        mServerSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        mExecutor = Executors.newCachedThreadPool();
+        mAcceptThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                acceptLoop();
+            }
+        }, TAG);
+        mAcceptThread.start();
+        Log.d(TAG, "start: listening on " + getBaseUrl());
+    }
+
+
+    void shutdown() {
+        try {
+            mServerSocket.close();
+        } catch(IOException e) {
+            Log.e(TAG, "shutdown: Error closing socket " + e.getMessage());
+        }
+        mExecutor.shutdownNow();
+    }
+
+
+    String getBaseUrl() {
+        return "http://127.0.0.1:" + mServerSocket.getLocalPort();
+    }
+
+    String getFeedUrl() {
+        return getBaseUrl() + FEED_PATH;
+    }
+
+
+    void setItemCount(int itemCount) {
+        mItemCount = itemCount;
+    }
+
+    void setLatencyMillis(long latencyMillis) {
+        mLatencyMillis = latencyMillis;
+    }
+
+    //0 means as fast as the socket will go
+    void setBytesPerSecond(long bytesPerSecond) {
+        mBytesPerSecond = bytesPerSecond;
+    }
+
+    //fraction of requests, between 0 and 1, that get a 500 response instead of data
+    void setErrorRate(float errorRate) {
+        mErrorRate = errorRate;
+    }
+
+    //serve this exact body for every feed request instead of generating one, null goes back to generating
+    void setRecordedFeed(String recordedFeed) {
+        mRecordedFeed = recordedFeed;
+    }
+
+    int getRequestCount() {
+        return mRequestCount.get();
+    }
+
+    int getErrorCount() {
+        return mErrorCount.get();
+    }
+
+
+    private void acceptLoop() {
+        while(!mServerSocket.isClosed()) {
+            try {
+                final Socket socket = mServerSocket.accept();
+                mExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        handle(socket);
+                    }
+                });
+            } catch(IOException e) {
+                if(!mServerSocket.isClosed()) {
+                    Log.e(TAG, "acceptLoop: Error accepting connection " + e.getMessage());
+                }
+            }
+        }
+    }
+
+
+    private void handle(Socket socket) {
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), UTF_8));
+            String requestLine = reader.readLine();
+            if(requestLine == null) {
+                return;
+            }
+
+            //skip the headers, we don't need any of them
+            String header;
+            while(null != (header = reader.readLine()) && header.length() > 0) {
+                //nothing to do
+            }
+
+            mRequestCount.incrementAndGet();
+            String[] parts = requestLine.split(" ");
+            String path = (parts.length > 1) ? parts[1] : "/";
+            int queryStart = path.indexOf('?');
+            if(queryStart >= 0) {
+                path = path.substring(0, queryStart);
+            }
+
+            if(mLatencyMillis > 0) {
+                Thread.sleep(mLatencyMillis);
+            }
+
+            OutputStream out = socket.getOutputStream();
+            if(shouldFail()) {
+                mErrorCount.incrementAndGet();
+                writeResponse(out, 500, "text/plain", new byte[0]);
+            } else if(path.equals(FEED_PATH)) {
+                writeResponse(out, 200, "application/json", getFeedBody().getBytes(UTF_8));
+            } else if(path.startsWith(IMAGE_PATH)) {
+                writeResponse(out, 200, "image/jpeg", getImageBody(path));
+            } else {
+                writeResponse(out, 404, "text/plain", new byte[0]);
+            }
+        } catch(IOException e) {
+            Log.e(TAG, "handle: IO Exception " + e.getMessage());
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch(JSONException e) {
+            Log.e(TAG, "handle: Error building feed " + e.getMessage());
+        } finally {
+            try {
+                socket.close();
+            } catch(IOException e) {
+                Log.e(TAG, "handle: Error closing socket " + e.getMessage());
+            }
+        }
+    }
+
+
+    private boolean shouldFail() {
+        synchronized(mRandom) {
+            return mErrorRate > 0f && mRandom.nextFloat() < mErrorRate;
+        }
+    }
+
+
+    private void writeResponse(OutputStream out, int code, String contentType, byte[] body)
+            throws IOException, InterruptedException {
+        String headers = "HTTP/1.1 " + code + " " + (code == 200 ? "OK" : "Error") + "\r\n"
+                + "Content-Type: " + contentType + "\r\n"
+                + "Content-Length: " + body.length + "\r\n"
+                + "Connection: close\r\n\r\n";
+        out.write(headers.getBytes(UTF_8));
+
+        //throttle the body to the configured bandwidth by pausing between chunks
+        long start = System.nanoTime();
+        for(int offset = 0; offset < body.length; offset += WRITE_CHUNK_SIZE) {
+            int length = Math.min(WRITE_CHUNK_SIZE, body.length - offset);
+            out.write(body, offset, length);
+
+            if(mBytesPerSecond > 0) {
+                long expectedMillis = (offset + length) * 1000L / mBytesPerSecond;
+                long elapsedMillis = (System.nanoTime() - start) / 1000000;
+                if(expectedMillis > elapsedMillis) {
+                    Thread.sleep(expectedMillis - elapsedMillis);
+                }
+            }
+        }
+        out.flush();
+    }
+
+
+    /*
+        builds a feed that looks like the real thing, including the description with the image size in
+        it and the escaped slashes that flickr puts in every URL
+     */
+    private String getFeedBody() throws JSONException {
+        if(mRecordedFeed != null) {
+            return mRecordedFeed;
+        }
+
+        JSONArray items = new JSONArray();
+        for(int i = 0; i < mItemCount; i++) {
+            int height = (i % 3 == 0) ? 240 : 180;
+            String image = getBaseUrl() + IMAGE_PATH + "photo" + i + "_" + height + "_m.jpg";
+
+            JSONObject media = new JSONObject();
+            media.put("m", image);
+
+            JSONObject item = new JSONObject();
+            item.put("title", "Mock photo " + i);
+            item.put("link", "https://www.flickr.com/photos/mock/" + i + "/");
+            item.put("media", media);
+            item.put("date_taken", "2018-02-20T10:00:00-08:00");
+            item.put("description", "<p><img src=\"" + image + "\" width=\"240\" height=\"" + height + "\" alt=\"\" /></p>");
+            item.put("published", "2018-02-20T18:00:00Z");
+            item.put("author", "nobody@flickr.com (\"mock" + (i % 7) + "\")");
+            item.put("author_id", "1234567@N0" + (i % 7));
+            item.put("tags", "mock test photo" + i);
+            items.put(item);
+        }
+
+        JSONObject feed = new JSONObject();
+        feed.put("title", "Recent Uploads tagged mock");
+        feed.put("link", "https://www.flickr.com/photos/tags/mock/");
+        feed.put("description", "");
+        feed.put("modified", "2018-02-20T18:00:00Z");
+        feed.put("generator", "https://www.flickr.com");
+        feed.put("items", items);
+        return feed.toString();
+    }
+
+
+    /*
+        images are named <name>_<height>_<size>.jpg, the size letter picks the width the same way flickr
+        does. Each distinct image is only drawn and compressed once
+     */
+    private byte[] getImageBody(String path) {
+        synchronized(mImageCache) {
+            byte[] cached = mImageCache.get(path);
+            if(cached != null) {
+                return cached;
+            }
+
+            String name = path.substring(IMAGE_PATH.length());
+            String[] parts = name.split("_");
+            int height = 180;
+            if(parts.length >= 3) {
+                try {
+                    height = Integer.parseInt(parts[1]);
+                } catch(NumberFormatException e) {
+                    Log.e(TAG, "getImageBody: Bad image name " + name);
+                }
+            }
+
+            //the height in the name is for the "m" size, the others are scaled to match
+            String size = parts[parts.length - 1];
+            int width = widthForSize(size.isEmpty() ? 'm' : size.charAt(0));
+            height = height * width / 240;
+
+            Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+            Canvas canvas = new Canvas(bitmap);
+            int hue = Math.abs(name.hashCode()) % 360;
+            canvas.drawColor(Color.HSVToColor(new float[]{hue, 0.6f, 0.9f}));
+            Paint paint = new Paint(Paint.ANTI_ALIAS_FLAG);
+            paint.setColor(Color.HSVToColor(new float[]{(hue + 180) % 360, 0.8f, 0.6f}));
+            canvas.drawCircle(width / 2f, height / 2f, Math.min(width, height) / 3f, paint);
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            bitmap.compress(Bitmap.CompressFormat.JPEG, 85, out);
+            bitmap.recycle();
+
+            byte[] body = out.toByteArray();
+            mImageCache.put(path, body);
+            return body;
+        }
+    }
+
+
+    //the width flickr uses for each size letter, anything it doesn't know is "m"
+    private static int widthForSize(char size) {
+        switch(size) {
+            case 't':
+                return 100;
+            case 'n':
+                return 320;
+            case 'z':
+                return 640;
+            case 'b':
+                return 1024;
+            default:
+                return 240;
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package com.peterponterio.flickrbrowser;
+
+import android.graphics.drawable.Drawable;
+import android.support.v4.util.LruCache;
+
+/*
+    Remembers the shape of thumbnails we've already downloaded, keyed by the image URL.
+
+    Most photos come with their size in the feed's description, but when that's missing the first
+    download tells us, and the next time the same photo is bound we can reserve the right space for it.
+ */
+class AspectRatioCache {
+
+    private static final int MAX_ENTRIES = 500;
+
+    private static final LruCache<String, Float> sCache = new LruCache<>(MAX_ENTRIES);
+
+    static {
+        //each entry is an image URL and a Float
+        MemoryBudget.getInstance().register(new MemoryBudget.LruCacheConsumer("AspectRatioCache", sCache, 200));
+    }
+
+    private AspectRatioCache() {
+    }
+
+
+    //returns the best aspect ratio we know for this photo, falling back to the default
+    static float get(Photo photo) {
+        if(photo.getAspectRatio() > 0f) {
+            return photo.getAspectRatio();
+        }
+        Float cached = sCache.get(photo.getImage());
+        return (cached != null) ? cached : AspectRatioImageView.DEFAULT_ASPECT_RATIO;
+    }
+
+
+    //called once the real thumbnail has been set so we know its size
+    static void learn(Photo photo, Drawable drawable) {
+        if(drawable == null || drawable.getIntrinsicWidth() <= 0 || drawable.getIntrinsicHeight() <= 0) {
+            return;
+        }
+        float aspectRatio = (float) drawable.getIntrinsicHeight() / drawable.getIntrinsicWidth();
+        sCache.put(photo.getImage(), aspectRatio);
+        if(photo.getAspectRatio() <= 0f) {
+            photo.setAspectRatio(aspectRatio);
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package com.peterponterio.flickrbrowser;
+
+import android.content.Context;
+import android.support.v7.widget.AppCompatImageView;
+import android.util.AttributeSet;
+
+/*
+    An ImageView that works out its own height from its width and an aspect ratio that we give it
+    before the image has been downloaded.
+
+    A normal wrap_content ImageView is sized by the placeholder first and then resized again when
+    picasso swaps in the real image, which makes the recyclerView lay the rows out a second time.
+    Reserving the space up front means the swap doesn't change the size of anything.
+ */
+class AspectRatioImageView extends AppCompatImageView {
+
+    //used until we know the real shape of the photo, most flickr thumbnails are 4:3
+    static final float DEFAULT_ASPECT_RATIO = 0.75f;
+
+    private float mAspectRatio = 0f;
+
+    public AspectRatioImageView(Context context) {
+        super(context);
+    }
+
+    public AspectRatioImageView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+    }
+
+    public AspectRatioImageView(Context context, AttributeSet attrs, int defStyleAttr) {
+        super(context, attrs, defStyleAttr);
+    }
+
+
+    //height divided by width. 0 goes back to the normal ImageView behaviour
+    void setAspectRatio(float aspectRatio) {
+        if(aspectRatio != mAspectRatio) {
+            mAspectRatio = aspectRatio;
+            requestLayout();
+        }
+    }
+
+    float getAspectRatio() {
+        return mAspectRatio;
+    }
+
+
+    @Override
+    protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
+        if(mAspectRatio <= 0f || MeasureSpec.getMode(widthMeasureSpec) == MeasureSpec.UNSPECIFIED) {
+            super.onMeasure(widthMeasureSpec, heightMeasureSpec);
+            return;
+        }
+
+        int width = MeasureSpec.getSize(widthMeasureSpec);
+        int height = Math.round(width * mAspectRatio);
+        setMeasuredDimension(width, height);
+    }
+}
@@ -0,0 +1,227 @@
+package com.peterponterio.flickrbrowser;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+    Keeps a rolling estimate of how fast the connection is, from every feed and image we download.
+
+    Each download reports how many bytes it moved and how long that took, and how long the server took
+    to start answering. Both are smoothed with an exponentially weighted moving average so that one
+    odd download doesn't swing the estimate too far.
+
+    The estimate is boiled down to a quality class, and the rest of the app asks this class how to
+    behave rather than looking at the numbers itself:
+
+        how many photos ahead of the screen to prefetch
+        how many images to download at the same time
+        which size of each photo to ask flickr for
+
+    Until we've seen a few downloads we guess from the type of network we're on.
+ */
+class BandwidthEstimator {
+    private static final String TAG = "BandwidthEstimator";
+
+    static final int QUALITY_POOR = 0;
+    static final int QUALITY_MODERATE = 1;
+    static final int QUALITY_GOOD = 2;
+    static final int QUALITY_EXCELLENT = 3;
+
+    //upper limits of each class in kilobits per second, anything above GOOD is EXCELLENT
+    private static final long POOR_KBPS = 150;
+    private static final long MODERATE_KBPS = 550;
+    private static final long GOOD_KBPS = 2000;
+
+    //a high latency connection feels slow however much bandwidth it has
+    private static final long POOR_LATENCY_MILLIS = 1500;
+
+    //how much each new sample moves the average, and how many we need before trusting it
+    private static final double SMOOTHING = 0.25;
+    private static final int MIN_SAMPLES = 3;
+
+    //transfers smaller than this are mostly latency, so they'd make the bandwidth look worse than it is
+    private static final long MIN_SAMPLE_BYTES = 8 * 1024;
+
+    //indexed by quality class
+    private static final int[] PREFETCH_DISTANCE = {2, 5, 10, 20};
+    private static final int[] MAX_IMAGE_DOWNLOADS = {1, 2, 3, 4};
+    private static final String[] THUMBNAIL_SUFFIX = {"_t.", "_m.", "_n.", "_n."};
+    private static final String[] LARGE_SUFFIX = {"_z.", "_b.", "_b.", "_b."};
+
+    interface OnQualityChangedListener {
+        void onQualityChanged(int quality);
+    }
+
+    private static BandwidthEstimator sInstance = null;
+
+    private double mKbps = 0;
+    private double mLatencyMillis = 0;
+    private int mBandwidthSamples = 0;
+    private int mLatencySamples = 0;
+    private int mQuality = QUALITY_MODERATE;
+    private final List<OnQualityChangedListener> mListeners = new ArrayList<>();
+
+
+    static synchronized BandwidthEstimator getInstance() {
+        if(sInstance == null) {
+            sInstance = new BandwidthEstimator();
+        }
+        return sInstance;
+    }
+
+    private BandwidthEstimator() {
+    }
+
+
+    //makes a first guess from the network type, only used until real downloads have been measured
+    void guessFromNetwork(Context context) {
+        ConnectivityManager connectivityManager = (ConnectivityManager) context.getApplicationContext()
+                .getSystemService(Context.CONNECTIVITY_SERVICE);
+        NetworkInfo networkInfo = connectivityManager.getActiveNetworkInfo();
+
+        int quality = QUALITY_MODERATE;
+        if(networkInfo != null && networkInfo.getType() == ConnectivityManager.TYPE_WIFI) {
+            quality = QUALITY_GOOD;
+        }
+
+        synchronized(this) {
+            if(mBandwidthSamples >= MIN_SAMPLES) {
+                return;
+            }
+        }
+        Log.d(TAG, "guessFromNetwork: quality " + quality);
+        setQuality(quality);
+    }
+
+
+    void addListener(OnQualityChangedListener listener) {
+        synchronized(mListeners) {
+            mListeners.add(listener);
+        }
+    }
+
+
+    //called by every download once its body has been read
+    void addTransfer(long bytes, long nanos) {
+        if(bytes < MIN_SAMPLE_BYTES || nanos <= 0) {
+            return;
+        }
+        double kbps = bytes * 8.0 / (nanos / 1000000.0);
+        synchronized(this) {
+            mKbps = (mBandwidthSamples == 0) ? kbps : mKbps + SMOOTHING * (kbps - mKbps);
+            mBandwidthSamples++;
+        }
+        updateQuality();
+    }
+
+
+    //called by every download with the time from sending the request to getting the response code
+    void addLatency(long nanos) {
+        double millis = nanos / 1000000.0;
+        synchronized(this) {
+            mLatencyMillis = (mLatencySamples == 0) ? millis : mLatencyMillis + SMOOTHING * (millis - mLatencyMillis);
+            mLatencySamples++;
+        }
+        updateQuality();
+    }
+
+
+    private void updateQuality() {
+        int quality;
+        synchronized(this) {
+            if(mBandwidthSamples < MIN_SAMPLES) {
+                return;
+            }
+            if(mKbps < POOR_KBPS) {
+                quality = QUALITY_POOR;
+            } else if(mKbps < MODERATE_KBPS) {
+                quality = QUALITY_MODERATE;
+            } else if(mKbps < GOOD_KBPS) {
+                quality = QUALITY_GOOD;
+            } else {
+                quality = QUALITY_EXCELLENT;
+            }
+            if(mLatencySamples >= MIN_SAMPLES && mLatencyMillis > POOR_LATENCY_MILLIS) {
+                quality = Math.min(quality, QUALITY_MODERATE);
+            }
+        }
+        setQuality(quality);
+    }
+
+
+    private void setQuality(int quality) {
+        synchronized(this) {
+            if(quality == mQuality) {
+                return;
+            }
+            Log.d(TAG, "setQuality: " + mQuality + " -> " + quality + " (" + (long) mKbps + "kbps, "
+                    + (long) mLatencyMillis + "ms)");
+            mQuality = quality;
+        }
+
+        List<OnQualityChangedListener> listeners;
+        synchronized(mListeners) {
+            listeners = new ArrayList<>(mListeners);
+        }
+        for(OnQualityChangedListener listener : listeners) {
+            listener.onQualityChanged(quality);
+        }
+    }
+
+
+    synchronized int getQuality() {
+        return mQuality;
+    }
+
+    synchronized long getKbps() {
+        return (long) mKbps;
+    }
+
+    synchronized long getLatencyMillis() {
+        return (long) mLatencyMillis;
+    }
+
+
+    //how many photos past the last visible one should have their thumbnails downloaded ahead of time
+    int getPrefetchDistance() {
+        //prefetching is optional, so it's the first thing to go when memory is short
+        if(MemoryBudget.getInstance().getCurrentTier() >= MemoryBudget.TIER_SEVERE) {
+            return 0;
+        }
+        return PREFETCH_DISTANCE[getQuality()];
+    }
+
+    int getMaxImageDownloads() {
+        return MAX_IMAGE_DOWNLOADS[getQuality()];
+    }
+
+
+    /*
+        the feed gives us the "m" (240 pixel) version of each photo. On a slow connection the tiny "t"
+        version is good enough for a list row, on a fast one the sharper "n" (320 pixel) version is worth it
+     */
+    String chooseThumbnailUrl(String mediumUrl) {
+        return replaceSizeSuffix(mediumUrl, "_m.", THUMBNAIL_SUFFIX[getQuality()]);
+    }
+
+    //the "b" (1024 pixel) version is a lot to download on a slow connection, so drop to "z" (640 pixel)
+    String chooseLargeUrl(String largeUrl) {
+        return replaceSizeSuffix(largeUrl, "_b.", LARGE_SUFFIX[getQuality()]);
+    }
+
+    private static String replaceSizeSuffix(String url, String from, String to) {
+        if(url == null || from.equals(to)) {
+            return url;
+        }
+        int index = url.lastIndexOf(from);
+        if(index < 0) {
+            return url;
+        }
+        return url.substring(0, index) + to + url.substring(index + from.length());
+    }
+}
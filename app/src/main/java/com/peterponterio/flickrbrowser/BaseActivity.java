@@ -14,6 +14,10 @@ public class BaseActivity extends AppCompatActivity {
 
     static final String FLICKR_QUERY = "FLICKR_QUERY";
     static final String PHOTO_TRANSFER = "PHOTO_TRANSFER";
+    static final String PHOTO_LIST_ID = "PHOTO_LIST_ID";
+    static final String PHOTO_POSITION = "PHOTO_POSITION";
+    static final String LAYOUT_MODE = "LAYOUT_MODE";
+    static final String FLICKR_FEED_URL = "https://api.flickr.com/services/feeds/photos_public.gne";
 
     /*
         method to show tool bar and it will allow an activity to choose whether the toolbar should have
@@ -0,0 +1,580 @@
+package com.peterponterio.flickrbrowser;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.AsyncTask;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/*
+    Where downloaded images are kept on disk, for both picasso and the detail screen.
+
+    Files are named after a SHA-1 hash of what was downloaded rather than the url it came from, and a
+    separate index maps each url to its hash. When the same photo turns up under more than one url,
+    such as the same image from two different flickr hosts, it's only stored once.
+
+    Small images like thumbnails can be re-encoded as WEBP in the background once they've been stored,
+    which makes most of them around a third smaller. It's lossy, so it's off unless setReencode turns it
+    on, and even then the copy is only kept if it actually came out smaller. Big images are always left
+    alone, because the tiled viewer's region decoder can't read WEBP on older versions of android.
+
+    When the store goes over its budget, the entries are ranked once by how long since they were last
+    used times how big they are, and thrown out highest first until the store is back under
+    EVICT_TO_BYTES. So a big image nobody has looked at for a while goes before a lot of small recent
+    ones, and there's room for a few more downloads before the next ranking.
+
+    Images are handed out as streams that are opened while the store is locked. An open file can still
+    be read after it's been deleted, so an image can't disappear from under whoever is reading it if
+    it's evicted or compacted at the same time.
+
+    The index is written to a file alongside the images, so the store survives the app being restarted.
+    Writing it is left to the background thread, so a burst of downloads only writes it once. When the
+    store is opened, any file the index doesn't know about is deleted, such as a half finished download
+    from before the process was killed.
+ */
+class DiskImageStore {
+    private static final String TAG = "DiskImageStore";
+
+    private static final String STORE_DIR = "image-store";
+    private static final String INDEX_FILE = "index";
+    private static final String IMAGE_SUFFIX = ".img";
+    private static final int INDEX_VERSION = 1;
+    private static final long MAX_BYTES = 50 * 1024 * 1024;
+    private static final long EVICT_TO_BYTES = MAX_BYTES * 9 / 10;
+
+    //only images this size or smaller get re-encoded
+    private static final int MAX_REENCODE_DIMENSION = 640;
+    private static final int WEBP_QUALITY = 80;
+
+    //where images used to be cached before this store, deleted the first time it's opened
+    private static final String[] OLD_CACHE_DIRS = {"picasso-cache", "detail-images"};
+
+    private static DiskImageStore sInstance = null;
+
+    private final File mDir;
+    //compacts images and writes the index, one thing at a time so index writes never overlap
+    private final ExecutorService mBackgroundExecutor = Executors.newSingleThreadExecutor();
+    private volatile boolean mReencode = false;
+
+    //guarded by this
+    private final Map<String, String> mUrlToHash = new HashMap<>();
+    private final Map<String, Entry> mEntries = new HashMap<>();
+    private long mTotalBytes = 0;
+    private boolean mIndexDirty = false;
+    private boolean mIndexWriteQueued = false;
+
+    //stats, for the log
+    private long mHits = 0;
+    private long mMisses = 0;
+    private long mDuplicates = 0;
+    private long mEvictions = 0;
+    private long mBytesSavedByReencoding = 0;
+
+
+    private static class Entry {
+        final String mHash;
+        long mSize;
+        long mLastAccess;
+        boolean mCompacted;
+
+        //every url that maps to this entry, so they can be forgotten without looking through them all
+        final List<String> mUrls = new ArrayList<>(1);
+
+        Entry(String hash, long size, long lastAccess, boolean compacted) {
+            mHash = hash;
+            mSize = size;
+            mLastAccess = lastAccess;
+            mCompacted = compacted;
+        }
+    }
+
+
+    //the first call reads the index from disk, so make it on a background thread
+    static synchronized DiskImageStore getInstance(Context context) {
+        if(sInstance == null) {
+            sInstance = new DiskImageStore(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private DiskImageStore(Context context) {
+        mDir = new File(context.getCacheDir(), STORE_DIR);
+        if(!mDir.exists() && !mDir.mkdirs()) {
+            Log.e(TAG, "DiskImageStore: Couldn't create " + mDir);
+        }
+        for(String oldDir : OLD_CACHE_DIRS) {
+            deleteRecursively(new File(context.getCacheDir(), oldDir));
+        }
+        readIndex();
+        deleteOrphans();
+    }
+
+
+    //whether small images are re-encoded as WEBP once they're stored. Off by default because it loses quality
+    void setReencode(boolean reencode) {
+        mReencode = reencode;
+    }
+
+
+    //the stored image for this url opened for reading, or null if we haven't got it. Close it when done
+    synchronized FileInputStream open(String url) {
+        String hash = mUrlToHash.get(url);
+        Entry entry = (hash != null) ? mEntries.get(hash) : null;
+        if(entry == null) {
+            mMisses++;
+            return null;
+        }
+        FileInputStream stream;
+        try {
+            stream = new FileInputStream(fileFor(hash));
+        } catch(FileNotFoundException e) {
+            //something else deleted it, forget about it
+            removeEntry(entry);
+            mMisses++;
+            return null;
+        }
+        mHits++;
+        entry.mLastAccess = System.currentTimeMillis();
+        mIndexDirty = true;
+        return stream;
+    }
+
+
+    /*
+        reads the whole stream into the store as the image for url and returns the stored image opened
+        for reading, the same as open. The stream passed in is closed afterwards. Throws IOException if it
+        couldn't be read or stored
+     */
+    FileInputStream put(String url, InputStream in) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch(NoSuchAlgorithmException e) {
+            throw new IOException("No SHA-1: " + e.getMessage());
+        }
+
+        //stream into a temp file and hash at the same time, we don't know the name until we're done
+        File temp = File.createTempFile("download", ".tmp", mDir);
+        long size = 0;
+        boolean complete = false;
+        OutputStream out = null;
+        try {
+            out = new BufferedOutputStream(new FileOutputStream(temp));
+            byte[] buffer = new byte[8192];
+            int read;
+            while(-1 != (read = in.read(buffer))) {
+                digest.update(buffer, 0, read);
+                out.write(buffer, 0, read);
+                size += read;
+            }
+            complete = true;
+        } finally {
+            in.close();
+            if(out != null) {
+                out.close();
+            }
+            if(!complete && !temp.delete()) {
+                Log.e(TAG, "put: Couldn't delete " + temp);
+            }
+        }
+        if(size == 0) {
+            temp.delete();
+            throw new IOException("Empty image from " + url);
+        }
+
+        String hash = toHex(digest.digest());
+        File file = fileFor(hash);
+        Entry entry;
+        FileInputStream stored;
+        synchronized(this) {
+            entry = mEntries.get(hash);
+            if(entry != null && file.exists()) {
+                //same picture we already have, maybe from another url
+                mDuplicates++;
+                temp.delete();
+                entry.mLastAccess = System.currentTimeMillis();
+            } else {
+                if(!temp.renameTo(file)) {
+                    temp.delete();
+                    throw new IOException("Couldn't rename " + temp);
+                }
+                if(entry != null) {
+                    removeEntry(entry);
+                }
+                entry = new Entry(hash, size, System.currentTimeMillis(), false);
+                mEntries.put(hash, entry);
+                mTotalBytes += size;
+            }
+            mapUrl(url, entry);
+
+            //opened before evicting, so it's still readable even if this is the entry that goes
+            stored = new FileInputStream(file);
+            mIndexDirty = true;
+            evictIfNeeded();
+            queueIndexWrite();
+        }
+
+        if(mReencode && !entry.mCompacted) {
+            final String compactHash = hash;
+            mBackgroundExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    compact(compactHash);
+                }
+            });
+        }
+        return stored;
+    }
+
+
+    //points url at entry, and takes it off the entry it pointed at before. Called with the lock held
+    private void mapUrl(String url, Entry entry) {
+        String oldHash = mUrlToHash.put(url, entry.mHash);
+        if(oldHash != null && !oldHash.equals(entry.mHash)) {
+            Entry old = mEntries.get(oldHash);
+            if(old != null) {
+                old.mUrls.remove(url);
+            }
+        }
+        if(!entry.mUrls.contains(url)) {
+            entry.mUrls.add(url);
+        }
+    }
+
+
+    /*
+        re-encodes a small image as WEBP, and keeps the copy if it's smaller. Runs on the background
+        thread. The copy only replaces the image if the entry is still in the store by then, otherwise
+        we'd leave a file behind that nothing knows about
+     */
+    private void compact(String hash) {
+        File file = fileFor(hash);
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(file.getPath(), options);
+        boolean small = options.outWidth > 0 && options.outHeight > 0
+                && Math.max(options.outWidth, options.outHeight) <= MAX_REENCODE_DIMENSION;
+        boolean alreadyWebp = "image/webp".equals(options.outMimeType);
+
+        File temp = null;
+        if(small && !alreadyWebp) {
+            Bitmap bitmap = BitmapFactory.decodeFile(file.getPath());
+            if(bitmap != null) {
+                temp = new File(mDir, hash + ".webp.tmp");
+                try {
+                    OutputStream out = new BufferedOutputStream(new FileOutputStream(temp));
+                    try {
+                        bitmap.compress(Bitmap.CompressFormat.WEBP, WEBP_QUALITY, out);
+                    } finally {
+                        out.close();
+                    }
+                } catch(IOException e) {
+                    Log.e(TAG, "compact: Couldn't re-encode " + hash + " " + e.getMessage());
+                    temp.delete();
+                    temp = null;
+                } finally {
+                    bitmap.recycle();
+                }
+            }
+        }
+
+        //big or broken images are marked too, so we don't keep trying them
+        synchronized(this) {
+            Entry entry = mEntries.get(hash);
+            long savedBytes = 0;
+            if(entry != null && temp != null) {
+                savedBytes = file.length() - temp.length();
+                if(savedBytes <= 0 || !temp.renameTo(file)) {
+                    savedBytes = 0;
+                }
+            }
+            if(temp != null && temp.exists()) {
+                temp.delete();
+            }
+            if(entry != null) {
+                entry.mCompacted = true;
+                entry.mSize -= savedBytes;
+                mTotalBytes -= savedBytes;
+                mBytesSavedByReencoding += savedBytes;
+                mIndexDirty = true;
+                queueIndexWrite();
+            }
+        }
+    }
+
+
+    /*
+        once we're over budget, ranks everything by age times size and throws out the highest scores
+        until we're down to EVICT_TO_BYTES. Called with the lock held
+     */
+    private void evictIfNeeded() {
+        if(mTotalBytes <= MAX_BYTES) {
+            return;
+        }
+        final long now = System.currentTimeMillis();
+        List<Entry> entries = new ArrayList<>(mEntries.values());
+        Collections.sort(entries, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry a, Entry b) {
+                //+1 so that a big entry used this very millisecond still ranks above a small one
+                return Double.compare((double) (now - b.mLastAccess + 1) * b.mSize,
+                        (double) (now - a.mLastAccess + 1) * a.mSize);
+            }
+        });
+
+        for(int i = 0; i < entries.size() && mTotalBytes > EVICT_TO_BYTES; i++) {
+            Entry victim = entries.get(i);
+            removeEntry(victim);
+            if(!fileFor(victim.mHash).delete()) {
+                Log.e(TAG, "evictIfNeeded: Couldn't delete " + victim.mHash);
+            }
+            mEvictions++;
+        }
+    }
+
+
+    //forgets the entry and every url that pointed at it, the caller deals with the file
+    private void removeEntry(Entry entry) {
+        mEntries.remove(entry.mHash);
+        mTotalBytes -= entry.mSize;
+        for(String url : entry.mUrls) {
+            if(entry.mHash.equals(mUrlToHash.get(url))) {
+                mUrlToHash.remove(url);
+            }
+        }
+        entry.mUrls.clear();
+        mIndexDirty = true;
+    }
+
+
+    private File fileFor(String hash) {
+        return new File(mDir, hash + IMAGE_SUFFIX);
+    }
+
+
+    private void readIndex() {
+        File indexFile = new File(mDir, INDEX_FILE);
+        if(!indexFile.exists()) {
+            return;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+            if(in.readInt() != INDEX_VERSION) {
+                Log.d(TAG, "readIndex: old index, starting again");
+                return;
+            }
+            int entryCount = in.readInt();
+            for(int i = 0; i < entryCount; i++) {
+                Entry entry = new Entry(in.readUTF(), in.readLong(), in.readLong(), in.readBoolean());
+                if(fileFor(entry.mHash).exists()) {
+                    mEntries.put(entry.mHash, entry);
+                    mTotalBytes += entry.mSize;
+                }
+            }
+            int urlCount = in.readInt();
+            for(int i = 0; i < urlCount; i++) {
+                String url = in.readUTF();
+                Entry entry = mEntries.get(in.readUTF());
+                if(entry != null) {
+                    mapUrl(url, entry);
+                }
+            }
+            Log.d(TAG, "readIndex: " + mEntries.size() + " images, " + mTotalBytes + " bytes");
+        } catch(IOException e) {
+            //the images are only a cache, so a broken index just means starting again
+            Log.e(TAG, "readIndex: Error reading index " + e.getMessage());
+            mEntries.clear();
+            mUrlToHash.clear();
+            mTotalBytes = 0;
+        } finally {
+            if(in != null) {
+                try {
+                    in.close();
+                } catch(IOException e) {
+                    Log.e(TAG, "readIndex: Error closing index " + e.getMessage());
+                }
+            }
+        }
+    }
+
+
+    /*
+        downloads and compactions write to temp files first, and an image's file is only in the index once
+        it's been written. If the process dies part way through, or the index was old or broken and we're
+        starting again, those files are left behind where nothing will ever evict them. Nothing else is
+        using the store yet, so anything that isn't an image in the index can go
+     */
+    private void deleteOrphans() {
+        File[] files = mDir.listFiles();
+        if(files == null) {
+            return;
+        }
+        int deleted = 0;
+        for(File file : files) {
+            String name = file.getName();
+            boolean orphan = name.endsWith(".tmp")
+                    || (name.endsWith(IMAGE_SUFFIX)
+                            && !mEntries.containsKey(name.substring(0, name.length() - IMAGE_SUFFIX.length())));
+            if(orphan) {
+                if(file.delete()) {
+                    deleted++;
+                } else {
+                    Log.e(TAG, "deleteOrphans: Couldn't delete " + file);
+                }
+            }
+        }
+        Log.d(TAG, "deleteOrphans: deleted " + deleted + " files");
+    }
+
+
+    //has the background thread write the index, unless it's already going to. Called with the lock held
+    private void queueIndexWrite() {
+        if(mIndexWriteQueued) {
+            return;
+        }
+        mIndexWriteQueued = true;
+        mBackgroundExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                writeIndex();
+            }
+        });
+    }
+
+
+    /*
+        writes to a temp file and renames it, the same as the feed snapshot. Only called on the background
+        thread. The index is copied with the lock held and written without it, so gets and puts don't
+        have to wait for the disk
+     */
+    private void writeIndex() {
+        List<Entry> entries;
+        Map<String, String> urls;
+        synchronized(this) {
+            mIndexWriteQueued = false;
+            if(!mIndexDirty) {
+                return;
+            }
+            mIndexDirty = false;
+            entries = new ArrayList<>(mEntries.size());
+            for(Entry entry : mEntries.values()) {
+                Entry copy = new Entry(entry.mHash, entry.mSize, entry.mLastAccess, entry.mCompacted);
+                entries.add(copy);
+            }
+            urls = new HashMap<>(mUrlToHash);
+        }
+
+        File temp = new File(mDir, INDEX_FILE + ".tmp");
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            try {
+                out.writeInt(INDEX_VERSION);
+                out.writeInt(entries.size());
+                for(Entry entry : entries) {
+                    out.writeUTF(entry.mHash);
+                    out.writeLong(entry.mSize);
+                    out.writeLong(entry.mLastAccess);
+                    out.writeBoolean(entry.mCompacted);
+                }
+                out.writeInt(urls.size());
+                for(Map.Entry<String, String> url : urls.entrySet()) {
+                    out.writeUTF(url.getKey());
+                    out.writeUTF(url.getValue());
+                }
+            } finally {
+                out.close();
+            }
+            if(!temp.renameTo(new File(mDir, INDEX_FILE))) {
+                throw new IOException("Couldn't rename " + temp);
+            }
+        } catch(IOException e) {
+            Log.e(TAG, "writeIndex: Error writing index " + e.getMessage());
+            synchronized(this) {
+                mIndexDirty = true;
+            }
+        }
+    }
+
+
+    //saves the last used times, which open doesn't write out by itself, and logs the stats
+    static void flushAsync(Context context) {
+        final Context appContext = context.getApplicationContext();
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                final DiskImageStore store = getInstance(appContext);
+                store.mBackgroundExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        store.writeIndex();
+                        store.logReport();
+                    }
+                });
+            }
+        });
+    }
+
+
+    synchronized String getReport() {
+        return "images=" + mEntries.size()
+                + " urls=" + mUrlToHash.size()
+                + " bytes=" + mTotalBytes
+                + " hits=" + mHits
+                + " misses=" + mMisses
+                + " duplicates=" + mDuplicates
+                + " evictions=" + mEvictions
+                + " savedByReencoding=" + mBytesSavedByReencoding;
+    }
+
+    void logReport() {
+        Log.d(TAG, "logReport: " + getReport());
+    }
+
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for(byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+
+
+    private static void deleteRecursively(File file) {
+        if(!file.exists()) {
+            return;
+        }
+        File[] children = file.listFiles();
+        if(children != null) {
+            for(File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        if(!file.delete()) {
+            Log.e(TAG, "deleteRecursively: Couldn't delete " + file);
+        }
+    }
+}
@@ -0,0 +1,180 @@
+package com.peterponterio.flickrbrowser;
+
+import org.json.JSONException;
+
+/*
+    Lets the photos of a freshly downloaded feed read their fields straight out of the feed's text.
+
+    Parsing used to build a JSONObject for every item and pull every field out of it as a String, even
+    though the list only shows the title and the image, and the author and tags are only used if the
+    photo is opened. Now parsing only notes where each field's value starts and ends in the response,
+    and a field is unescaped into a String the first time its getter is called. Photo keeps it after that.
+
+    The photos hold on to the response text until they've been garbage collected. When the next feed
+    arrives, GetFlickrJsonData moves the photos it reuses over to the new feed and drops the ones it kept
+    that weren't in it, so at most the current feed's text is kept alive by them.
+ */
+class FeedFieldSource implements Photo.PhotoFieldSource {
+
+    //the keys we keep offsets for, in slot order. The link isn't in the feed, it's made from the image
+    private static final String[] KEYS = {"title", "author", "author_id", "tags", "media.m", "description"};
+    private static final int SLOT_TITLE = 0;
+    private static final int SLOT_AUTHOR = 1;
+    private static final int SLOT_AUTHOR_ID = 2;
+    private static final int SLOT_TAGS = 3;
+    private static final int SLOT_IMAGE = 4;
+    private static final int SLOT_DESCRIPTION = 5;
+    private static final int SLOT_COUNT = KEYS.length;
+
+    //every slot but the description has to be there, the same as when they came from getString
+    private static final int REQUIRED_SLOTS = SLOT_DESCRIPTION;
+
+    private final String mJson;
+    private final int[] mSpans;
+
+    FeedFieldSource(String json, int itemCount) {
+        mJson = json;
+        mSpans = new int[itemCount * SLOT_COUNT * 2];
+    }
+
+
+    //finds the fields of item index, which runs from start to end in the json
+    void scanItem(int index, int start, int end) throws JSONException {
+        int offset = index * SLOT_COUNT * 2;
+        FeedItemScanner.scanFields(mJson, start, end, KEYS, mSpans, offset);
+        for(int slot = 0; slot < REQUIRED_SLOTS; slot++) {
+            if(mSpans[offset + 2 * slot] < 0) {
+                throw new JSONException("No value for " + KEYS[slot]);
+            }
+        }
+    }
+
+
+    String getJson() {
+        return mJson;
+    }
+
+    //where the still escaped description of an item starts in getJson(), or -1 if it hasn't got one
+    int getDescriptionStart(int index) {
+        return mSpans[(index * SLOT_COUNT + SLOT_DESCRIPTION) * 2];
+    }
+
+    int getDescriptionEnd(int index) {
+        return mSpans[(index * SLOT_COUNT + SLOT_DESCRIPTION) * 2 + 1];
+    }
+
+
+    @Override
+    public String getField(int index, int field) {
+        if(field == Photo.FIELD_LINK) {
+            //m and b represent a specific size of the photo, m being smaller and b being larger
+            String image = getField(index, Photo.FIELD_IMAGE);
+            return (image != null) ? image.replaceFirst("_m.", "_b.") : null;
+        }
+        int slot = slotFor(field);
+        if(slot < 0) {
+            return null;
+        }
+        int span = (index * SLOT_COUNT + slot) * 2;
+        return unescape(mJson, mSpans[span], mSpans[span + 1]);
+    }
+
+
+    /*
+        whether the field is the same as value, without making a String of it when it has nothing
+        escaped in it, which is nearly always
+     */
+    boolean fieldEquals(int index, int field, String value) {
+        int slot = slotFor(field);
+        if(slot < 0 || value == null) {
+            return false;
+        }
+        int span = (index * SLOT_COUNT + slot) * 2;
+        int start = mSpans[span];
+        int end = mSpans[span + 1];
+        if(indexOfBackslash(mJson, start, end) < 0) {
+            return end - start == value.length() && mJson.regionMatches(start, value, 0, value.length());
+        }
+        return value.equals(unescape(mJson, start, end));
+    }
+
+
+    private static int slotFor(int field) {
+        switch(field) {
+            case Photo.FIELD_TITLE:
+                return SLOT_TITLE;
+            case Photo.FIELD_AUTHOR:
+                return SLOT_AUTHOR;
+            case Photo.FIELD_AUTHOR_ID:
+                return SLOT_AUTHOR_ID;
+            case Photo.FIELD_TAGS:
+                return SLOT_TAGS;
+            case Photo.FIELD_IMAGE:
+                return SLOT_IMAGE;
+            default:
+                return -1;
+        }
+    }
+
+
+    private static int indexOfBackslash(String json, int start, int end) {
+        for(int i = start; i < end; i++) {
+            if(json.charAt(i) == '\\') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+
+    //turns the json string value between start and end into a String, the same way JSONObject would
+    private static String unescape(String json, int start, int end) {
+        if(start < 0) {
+            return null;
+        }
+        int backslash = indexOfBackslash(json, start, end);
+        if(backslash < 0) {
+            return json.substring(start, end);
+        }
+
+        StringBuilder value = new StringBuilder(end - start);
+        value.append(json, start, backslash);
+        for(int i = backslash; i < end; i++) {
+            char c = json.charAt(i);
+            if(c != '\\' || i + 1 >= end) {
+                value.append(c);
+                continue;
+            }
+            c = json.charAt(++i);
+            switch(c) {
+                case 'b':
+                    value.append('\b');
+                    break;
+                case 'f':
+                    value.append('\f');
+                    break;
+                case 'n':
+                    value.append('\n');
+                    break;
+                case 'r':
+                    value.append('\r');
+                    break;
+                case 't':
+                    value.append('\t');
+                    break;
+                case 'u':
+                    int code = 0;
+                    for(int digit = 0; digit < 4 && i + 1 < end; digit++) {
+                        code = (code << 4) | Character.digit(json.charAt(++i), 16);
+                    }
+                    value.append((char) code);
+                    break;
+                default:
+                    //quotes, backslashes and forward slashes just lose the backslash
+                    value.append(c);
+                    break;
+            }
+        }
+        return value.toString();
+    }
+}
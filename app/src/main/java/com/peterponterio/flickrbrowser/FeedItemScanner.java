@@ -0,0 +1,206 @@
+package com.peterponterio.flickrbrowser;
+
+import org.json.JSONException;
+
+import java.util.Arrays;
+
+/*
+    Finds where each photo in a flickr feed starts and ends without parsing any of it.
+
+    Building a JSONObject for the whole feed means every item has to be parsed before we can look at
+    the first one. Instead we walk through the raw text once, only keeping track of quotes and brackets,
+    and note the position of each object inside the top level "items" array. Each item can then be
+    parsed on its own, in whatever order and on whatever thread suits.
+
+    The result is a flat array of start and end offsets: item i runs from spans[2 * i] up to (but not
+    including) spans[2 * i + 1].
+
+    scanFields does the same thing one level down, finding where the values we want sit inside an item
+    so that they can be decoded later, only if something actually asks for them.
+ */
+class FeedItemScanner {
+
+    private static final String ITEMS_KEY = "items";
+
+    private FeedItemScanner() {
+    }
+
+
+    static int[] scanItems(String json) throws JSONException {
+        int[] spans = new int[64];
+        int count = 0;
+
+        int depth = 0;
+        int itemStart = -1;
+        boolean itemsKeySeen = false;
+        boolean inItems = false;
+
+        int length = json.length();
+        for(int i = 0; i < length; i++) {
+            char c = json.charAt(i);
+
+            switch(c) {
+                case '"':
+                    int end = skipString(json, i);
+                    //only a key called "items" directly inside the top level object counts
+                    if(depth == 1 && !inItems && end - i - 1 == ITEMS_KEY.length()
+                            && json.startsWith(ITEMS_KEY, i + 1)) {
+                        itemsKeySeen = true;
+                    }
+                    i = end;
+                    break;
+
+                case '[':
+                    if(depth == 1 && itemsKeySeen) {
+                        inItems = true;
+                    }
+                    itemsKeySeen = false;
+                    depth++;
+                    break;
+
+                case '{':
+                    if(inItems && depth == 2) {
+                        itemStart = i;
+                    }
+                    itemsKeySeen = false;
+                    depth++;
+                    break;
+
+                case '}':
+                case ']':
+                    depth--;
+                    if(inItems && depth == 2 && c == '}') {
+                        if(count + 2 > spans.length) {
+                            spans = Arrays.copyOf(spans, spans.length * 2);
+                        }
+                        spans[count++] = itemStart;
+                        spans[count++] = i + 1;
+                    } else if(inItems && depth == 1) {
+                        //that was the end of the items array, nothing after it interests us
+                        return Arrays.copyOf(spans, count);
+                    }
+                    break;
+
+                case ':':
+                case ' ':
+                case '\n':
+                case '\r':
+                case '\t':
+                    break;
+
+                default:
+                    //any other value means the key we just saw wasn't followed by an array
+                    itemsKeySeen = false;
+                    break;
+            }
+        }
+
+        throw new JSONException("No items array found");
+    }
+
+
+    /*
+        finds the string values of the given keys inside one item, without building any strings. A key
+        like "media.m" means the key m inside the object under the key media. For each key, the offsets
+        of the value between its quotes are written to spans[offset + 2 * k] and spans[offset + 2 * k + 1],
+        or -1 if the item doesn't have that key as a string. The value is still json escaped
+     */
+    static void scanFields(String json, int start, int end, String[] keys, int[] spans, int offset)
+            throws JSONException {
+        Arrays.fill(spans, offset, offset + keys.length * 2, -1);
+
+        int depth = 0;
+        int keyStart = -1;
+        int keyEnd = -1;
+        int parentStart = -1; //the key of the object we're inside at depth 2, -1 if there isn't one
+        int parentEnd = -1;
+        boolean afterColon = false;
+
+        for(int i = start; i < end; i++) {
+            char c = json.charAt(i);
+
+            switch(c) {
+                case '"':
+                    int close = skipString(json, i);
+                    if(afterColon) {
+                        if(depth == 1 || (depth == 2 && parentStart >= 0)) {
+                            int k = findKey(json, keyStart, keyEnd, depth == 2 ? parentStart : -1, parentEnd, keys);
+                            if(k >= 0) {
+                                spans[offset + 2 * k] = i + 1;
+                                spans[offset + 2 * k + 1] = close;
+                            }
+                        }
+                        afterColon = false;
+                    } else if(depth == 1 || depth == 2) {
+                        keyStart = i + 1;
+                        keyEnd = close;
+                    }
+                    i = close;
+                    break;
+
+                case ':':
+                    afterColon = true;
+                    break;
+
+                case '{':
+                case '[':
+                    if(c == '{' && afterColon && depth == 1) {
+                        parentStart = keyStart;
+                        parentEnd = keyEnd;
+                    }
+                    afterColon = false;
+                    depth++;
+                    break;
+
+                case '}':
+                case ']':
+                    depth--;
+                    if(depth <= 1) {
+                        parentStart = -1;
+                    }
+                    break;
+
+                case ',':
+                    afterColon = false;
+                    break;
+
+                default:
+                    break;
+            }
+        }
+    }
+
+
+    //which of the keys the key between keyStart and keyEnd is, or -1. parentStart is -1 at the top level
+    private static int findKey(String json, int keyStart, int keyEnd, int parentStart, int parentEnd, String[] keys) {
+        int keyLength = keyEnd - keyStart;
+        for(int k = 0; k < keys.length; k++) {
+            String key = keys[k];
+            int dot = key.indexOf('.');
+            if(parentStart < 0) {
+                if(dot < 0 && keyLength == key.length() && json.startsWith(key, keyStart)) {
+                    return k;
+                }
+            } else if(dot >= 0 && parentEnd - parentStart == dot && json.regionMatches(parentStart, key, 0, dot)
+                    && keyLength == key.length() - dot - 1 && json.regionMatches(keyStart, key, dot + 1, keyLength)) {
+                return k;
+            }
+        }
+        return -1;
+    }
+
+
+    //returns the position of the quote that closes the string starting at the given quote
+    private static int skipString(String json, int start) throws JSONException {
+        int length = json.length();
+        for(int i = start + 1; i < length; i++) {
+            char c = json.charAt(i);
+            if(c == '\\') {
+                i++; //skip whatever has been escaped, it might be a quote
+            } else if(c == '"') {
+                return i;
+            }
+        }
+        throw new JSONException("Unterminated string at " + start);
+    }
+}
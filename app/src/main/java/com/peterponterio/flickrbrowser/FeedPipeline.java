@@ -0,0 +1,241 @@
+package com.peterponterio.flickrbrowser;
+
+import android.os.Process;
+import android.util.Log;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+    Downloads and parses feeds in two separate stages, so that one feed can be parsing while the next
+    one is still downloading.
+
+    Before this, each GetFlickrJsonData downloaded its feed and then parsed it on the same thread, so a
+    slow parse held up the next download and a slow download held up the next parse.
+
+        submit() -> [request queue] -> I/O threads -> [parse queue] -> parse threads -> main thread
+
+    The I/O stage has a few threads because they spend nearly all their time waiting on the network.
+    The parse stage has one thread per spare core because parsing is all cpu.
+
+    Both queues are bounded. If parsing falls behind, the parse queue fills up and the I/O threads
+    block until there's room, so we never download more feeds than we can parse. If the request queue
+    is full, submit() refuses the request rather than blocking the main thread, and the caller is told
+    the load failed.
+
+    The pipeline keeps counters for how deep the queues get and how long each stage takes. getReport()
+    formats them for the log.
+ */
+class FeedPipeline {
+    private static final String TAG = "FeedPipeline";
+
+    private static final int IO_THREADS = 3;
+    private static final int REQUEST_QUEUE_CAPACITY = 16;
+
+    private static FeedPipeline sInstance = null;
+
+    private final BlockingQueue<FeedJob> mRequestQueue = new ArrayBlockingQueue<>(REQUEST_QUEUE_CAPACITY);
+    private final BlockingQueue<FeedJob> mParseQueue;
+    private final int mParseThreads;
+
+    //metrics, written by the worker threads and read by getReport
+    private final AtomicLong mSubmitted = new AtomicLong();
+    private final AtomicLong mRejected = new AtomicLong();
+    private final AtomicLong mCancelled = new AtomicLong();
+    private final AtomicLong mCompleted = new AtomicLong();
+    private final StageStats mRequestWait = new StageStats();
+    private final StageStats mDownload = new StageStats();
+    private final StageStats mParseWait = new StageStats();
+    private final StageStats mParse = new StageStats();
+    private volatile int mMaxRequestQueueDepth = 0;
+    private volatile int mMaxParseQueueDepth = 0;
+
+
+    //a feed on its way through the pipeline
+    private static class FeedJob {
+        final String mUrl;
+        final GetFlickrJsonData mParser;
+        final long mSubmitNanos;
+        long mQueuedForParseNanos;
+        String mData;
+        DownloadStatus mStatus;
+
+        FeedJob(String url, GetFlickrJsonData parser) {
+            mUrl = url;
+            mParser = parser;
+            mSubmitNanos = System.nanoTime();
+        }
+    }
+
+
+    static synchronized FeedPipeline getInstance() {
+        if(sInstance == null) {
+            sInstance = new FeedPipeline();
+        }
+        return sInstance;
+    }
+
+    private FeedPipeline() {
+        //leave a core for the main thread
+        mParseThreads = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+        mParseQueue = new ArrayBlockingQueue<>(mParseThreads * 2);
+
+        for(int i = 0; i < IO_THREADS; i++) {
+            startThread("FeedPipeline-io-" + i, new Runnable() {
+                @Override
+                public void run() {
+                    runIoStage();
+                }
+            });
+        }
+        for(int i = 0; i < mParseThreads; i++) {
+            startThread("FeedPipeline-parse-" + i, new Runnable() {
+                @Override
+                public void run() {
+                    runParseStage();
+                }
+            });
+        }
+        Log.d(TAG, "FeedPipeline: " + IO_THREADS + " io threads, " + mParseThreads + " parse threads");
+    }
+
+    private static void startThread(String name, final Runnable stage) {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                stage.run();
+            }
+        }, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+
+    /*
+        queues a feed to be downloaded from url and then parsed by parser. Returns false if the pipeline
+        is too far behind to take it, this never blocks
+     */
+    boolean submit(String url, GetFlickrJsonData parser) {
+        if(!mRequestQueue.offer(new FeedJob(url, parser))) {
+            mRejected.incrementAndGet();
+            Log.e(TAG, "submit: request queue is full, rejecting " + url);
+            return false;
+        }
+        mSubmitted.incrementAndGet();
+        mMaxRequestQueueDepth = Math.max(mMaxRequestQueueDepth, mRequestQueue.size());
+        return true;
+    }
+
+
+    private void runIoStage() {
+        while(true) {
+            final FeedJob job;
+            try {
+                job = mRequestQueue.take();
+            } catch(InterruptedException e) {
+                return;
+            }
+            long start = System.nanoTime();
+            mRequestWait.add(start - job.mSubmitNanos);
+
+            //no point downloading a feed nobody is waiting for
+            if(job.mParser.isCancelled()) {
+                mCancelled.incrementAndGet();
+                continue;
+            }
+
+            GetRawData getRawData = new GetRawData(new GetRawData.OnDownloadComplete() {
+                @Override
+                public void onDownloadComplete(String data, DownloadStatus status) {
+                    job.mData = data;
+                    job.mStatus = status;
+                }
+            });
+            getRawData.runInSameThread(job.mUrl);
+            mDownload.add(System.nanoTime() - start);
+
+            //blocks while the parse stage is behind, that's the backpressure
+            job.mQueuedForParseNanos = System.nanoTime();
+            try {
+                mParseQueue.put(job);
+            } catch(InterruptedException e) {
+                return;
+            }
+            mMaxParseQueueDepth = Math.max(mMaxParseQueueDepth, mParseQueue.size());
+        }
+    }
+
+
+    private void runParseStage() {
+        while(true) {
+            FeedJob job;
+            try {
+                job = mParseQueue.take();
+            } catch(InterruptedException e) {
+                return;
+            }
+            long start = System.nanoTime();
+            mParseWait.add(start - job.mQueuedForParseNanos);
+
+            if(job.mParser.isCancelled()) {
+                mCancelled.incrementAndGet();
+                continue;
+            }
+
+            //the parser hands its results to the main thread itself
+            job.mParser.onDownloadComplete(job.mData, job.mStatus);
+            job.mData = null;
+            mParse.add(System.nanoTime() - start);
+            mCompleted.incrementAndGet();
+        }
+    }
+
+
+    int getRequestQueueDepth() {
+        return mRequestQueue.size();
+    }
+
+    int getParseQueueDepth() {
+        return mParseQueue.size();
+    }
+
+
+    String getReport() {
+        return "submitted=" + mSubmitted.get()
+                + " completed=" + mCompleted.get()
+                + " cancelled=" + mCancelled.get()
+                + " rejected=" + mRejected.get()
+                + " | requestQueue=" + mRequestQueue.size() + " (max " + mMaxRequestQueueDepth + ")"
+                + " parseQueue=" + mParseQueue.size() + " (max " + mMaxParseQueueDepth + ")"
+                + " | requestWait " + mRequestWait
+                + " download " + mDownload
+                + " parseWait " + mParseWait
+                + " parse " + mParse;
+    }
+
+    void logReport() {
+        Log.d(TAG, "logReport: " + getReport());
+    }
+
+
+    //count, average and worst time for one stage
+    private static class StageStats {
+        private long mCount = 0;
+        private long mTotalNanos = 0;
+        private long mMaxNanos = 0;
+
+        synchronized void add(long nanos) {
+            mCount++;
+            mTotalNanos += nanos;
+            mMaxNanos = Math.max(mMaxNanos, nanos);
+        }
+
+        @Override
+        public synchronized String toString() {
+            long averageMillis = (mCount == 0) ? 0 : mTotalNanos / mCount / 1000000;
+            return "avg=" + averageMillis + "ms max=" + (mMaxNanos / 1000000) + "ms n=" + mCount;
+        }
+    }
+}
@@ -0,0 +1,294 @@
+package com.peterponterio.flickrbrowser;
+
+import android.os.AsyncTask;
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+    Saves the last feed we showed to a file so it can be shown straight away the next time the app
+    starts, while the fresh feed is being downloaded.
+
+    Re-parsing the json or using java serialization would mean building every string of every photo
+    before we could show anything. Instead the file is laid out so it can be memory mapped and each
+    field read only when it's needed:
+
+        header     magic number, format version, photo count, offset of the string data
+        records    one per photo: the aspect ratio, then an offset and length for each of the
+                   Photo.FIELD_COUNT fields and one more for the photo's preview, pointing into the
+                   string data
+        strings    every field of every photo as UTF-8, and the preview bytes, one after another
+
+    Opening a snapshot only reads the header. The photos it hands back are backed by the snapshot, so a
+    field is only decoded when something calls its getter.
+ */
+class FeedSnapshot implements Photo.PhotoFieldSource {
+    private static final String TAG = "FeedSnapshot";
+
+    private static final int MAGIC = 0x464C4B53; //"FLKS"
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 16;
+    private static final int PREVIEW_SLOT = Photo.FIELD_COUNT;
+    private static final int SLOT_COUNT = Photo.FIELD_COUNT + 1;
+    private static final int RECORD_SIZE = 4 + SLOT_COUNT * 8;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    interface OnSnapshotRestored {
+        void onSnapshotRestored(List<Photo> photos);
+    }
+
+    /*
+        saves run one at a time on their own thread, so two of them can never be writing at once and the
+        last one asked for is the last one written. A save that's still waiting when a newer one is asked
+        for is skipped, the newer one has everything it would have written
+     */
+    private static final ExecutorService sSaveExecutor = Executors.newSingleThreadExecutor();
+    private static final AtomicInteger sLatestSave = new AtomicInteger();
+
+    private final ByteBuffer mBuffer;
+    private final int mCount;
+    private final int mStringsOffset;
+
+
+    private FeedSnapshot(ByteBuffer buffer, int count, int stringsOffset) {
+        mBuffer = buffer;
+        mCount = count;
+        mStringsOffset = stringsOffset;
+    }
+
+
+    //maps the file and checks the header. Throws an IOException if it isn't a snapshot we understand
+    static FeedSnapshot open(File file) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = randomAccessFile.getChannel();
+            long size = channel.size();
+            if(size < HEADER_SIZE || size > Integer.MAX_VALUE) {
+                throw new IOException("Bad snapshot size " + size);
+            }
+
+            //the mapping stays valid after the file is closed
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            if(buffer.getInt(0) != MAGIC) {
+                throw new IOException("Not a feed snapshot");
+            }
+            int version = buffer.getInt(4);
+            if(version != VERSION) {
+                throw new IOException("Unsupported snapshot version " + version);
+            }
+            int count = buffer.getInt(8);
+            int stringsOffset = buffer.getInt(12);
+            if(count < 0 || stringsOffset != HEADER_SIZE + (long) count * RECORD_SIZE || stringsOffset > size) {
+                throw new IOException("Corrupt snapshot header");
+            }
+            return new FeedSnapshot(buffer, count, stringsOffset);
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+
+    int getCount() {
+        return mCount;
+    }
+
+
+    //photos backed by this snapshot. Nothing is decoded until a field is asked for
+    List<Photo> getPhotos() {
+        List<Photo> photos = new ArrayList<>(mCount);
+        for(int i = 0; i < mCount; i++) {
+            float aspectRatio = mBuffer.getFloat(HEADER_SIZE + i * RECORD_SIZE);
+            Photo photo = new Photo(this, i, aspectRatio);
+
+            //previews are tiny and wanted as soon as the photo is bound, so there's no point waiting
+            photo.setPreview(readSlot(i, PREVIEW_SLOT));
+            photos.add(photo);
+        }
+        return photos;
+    }
+
+
+    @Override
+    public String getField(int index, int field) {
+        if(index < 0 || index >= mCount || field < 0 || field >= Photo.FIELD_COUNT) {
+            return null;
+        }
+        byte[] bytes = readSlot(index, field);
+        return (bytes != null) ? new String(bytes, UTF_8) : null;
+    }
+
+
+    private byte[] readSlot(int index, int slot) {
+        int record = HEADER_SIZE + index * RECORD_SIZE + 4 + slot * 8;
+        int offset = mBuffer.getInt(record);
+        int length = mBuffer.getInt(record + 4);
+        if(length < 0 || offset < 0 || mStringsOffset + (long) offset + length > mBuffer.limit()) {
+            return null;
+        }
+
+        //a duplicate has its own position, so photos on different threads can read at the same time
+        byte[] bytes = new byte[length];
+        ByteBuffer reader = mBuffer.duplicate();
+        reader.position(mStringsOffset + offset);
+        reader.get(bytes);
+        return bytes;
+    }
+
+
+    /*
+        writes to a temporary file and then renames it over the old one, so that a crash half way
+        through can never leave a broken snapshot behind
+     */
+    static void write(File file, List<Photo> photos) throws IOException {
+        long start = System.nanoTime();
+        int count = photos.size();
+        ByteArrayOutputStream strings = new ByteArrayOutputStream();
+        int[] offsets = new int[count * SLOT_COUNT];
+        int[] lengths = new int[count * SLOT_COUNT];
+
+        for(int i = 0; i < count; i++) {
+            Photo photo = photos.get(i);
+            for(int field = 0; field < SLOT_COUNT; field++) {
+                byte[] bytes;
+                if(field == PREVIEW_SLOT) {
+                    bytes = photo.getPreview();
+                } else {
+                    String value = photo.getField(field);
+                    bytes = (value != null) ? value.getBytes(UTF_8) : null;
+                }
+                int slot = i * SLOT_COUNT + field;
+                offsets[slot] = strings.size();
+                if(bytes == null) {
+                    lengths[slot] = -1;
+                } else {
+                    strings.write(bytes, 0, bytes.length);
+                    lengths[slot] = bytes.length;
+                }
+            }
+        }
+
+        //a temp file of its own in the same directory, so the rename can't cross file systems. Saves only
+        //run on one thread, so any temp file that's already there was left by a save that was killed
+        deleteTempFiles(file);
+        File temp = File.createTempFile(file.getName(), ".tmp", file.getParentFile());
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(count);
+            out.writeInt(HEADER_SIZE + count * RECORD_SIZE);
+            for(int i = 0; i < count; i++) {
+                out.writeFloat(photos.get(i).getAspectRatio());
+                for(int field = 0; field < SLOT_COUNT; field++) {
+                    int slot = i * SLOT_COUNT + field;
+                    out.writeInt(offsets[slot]);
+                    out.writeInt(lengths[slot]);
+                }
+            }
+            strings.writeTo(out);
+        } finally {
+            out.close();
+        }
+
+        if(!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Couldn't rename " + temp);
+        }
+        Log.d(TAG, "write: " + count + " photos in " + (System.nanoTime() - start) / 1000 + "us");
+    }
+
+
+    private static void deleteTempFiles(File file) {
+        File[] siblings = file.getParentFile().listFiles();
+        if(siblings == null) {
+            return;
+        }
+        for(File sibling : siblings) {
+            String name = sibling.getName();
+            if(name.startsWith(file.getName()) && name.endsWith(".tmp") && !sibling.delete()) {
+                Log.e(TAG, "deleteTempFiles: Couldn't delete " + sibling);
+            }
+        }
+    }
+
+
+    //saves the photos on a background thread, failures are only logged because the snapshot is optional
+    static void saveAsync(final File file, List<Photo> photos) {
+        final List<Photo> copy = new ArrayList<>(photos);
+        final int save = sLatestSave.incrementAndGet();
+        sSaveExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if(save != sLatestSave.get()) {
+                    Log.d(TAG, "saveAsync: skipping save " + save + ", there's a newer one");
+                    return;
+                }
+                try {
+                    write(file, copy);
+                } catch(IOException e) {
+                    Log.e(TAG, "saveAsync: Error writing snapshot " + e.getMessage());
+                }
+            }
+        });
+    }
+
+    //opens the snapshot on a background thread and hands its photos to the callback on the main thread
+    static void restoreAsync(File file, OnSnapshotRestored callback) {
+        new RestoreTask(file, callback).executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    }
+
+
+    private static class RestoreTask extends AsyncTask<Void, Void, List<Photo>> {
+        private final File mFile;
+        private final OnSnapshotRestored mCallback;
+
+        RestoreTask(File file, OnSnapshotRestored callback) {
+            mFile = file;
+            mCallback = callback;
+        }
+
+        @Override
+        protected List<Photo> doInBackground(Void... params) {
+            if(!mFile.exists()) {
+                return null;
+            }
+            long start = System.nanoTime();
+            try {
+                List<Photo> photos = open(mFile).getPhotos();
+
+                //so that photos from the next download of the feed get their previews too
+                for(Photo photo : photos) {
+                    PhotoPreview.remember(photo);
+                }
+                TitleLayoutCache.precompute(photos);
+                Log.d(TAG, "RestoreTask: " + photos.size() + " photos in " + (System.nanoTime() - start) / 1000 + "us");
+                return photos;
+            } catch(IOException e) {
+                Log.e(TAG, "RestoreTask: Error reading snapshot " + e.getMessage());
+                return null;
+            }
+        }
+
+        @Override
+        protected void onPostExecute(List<Photo> photos) {
+            if(photos != null && mCallback != null) {
+                mCallback.onSnapshotRestored(photos);
+            }
+        }
+    }
+}
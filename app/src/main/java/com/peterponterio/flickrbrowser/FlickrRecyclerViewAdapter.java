@@ -1,17 +1,22 @@
 package com.peterponterio.flickrbrowser;
 
 import android.content.Context;
+import android.graphics.drawable.Drawable;
 import android.support.v7.widget.RecyclerView;
 import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
-import android.widget.ImageView;
-import android.widget.TextView;
 
-import com.squareup.picasso.Picasso;
+import com.squareup.picasso.Callback;
+import com.squareup.picasso.RequestCreator;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * Created by peterponterio on 2/17/18.
@@ -21,28 +26,114 @@ import java.util.List;
 //use a generic type parameter to ensure that only our view holder objects can be used with this adapter
 class FlickrRecyclerViewAdapter extends RecyclerView.Adapter<FlickrRecyclerViewAdapter.FlickrImageViewHolder> {
     private static final String TAG = "FlickrRecyclerViewAdapt";
+
+    //the different ways the photos can be laid out, the value is saved in the shared preferences
+    static final int LAYOUT_LIST = 0;
+    static final int LAYOUT_GRID = 1;
+    static final int LAYOUT_STAGGERED = 2;
+
+    //list rows and grid cells use different layouts, so they have to be different view types
+    static final int VIEW_TYPE_ROW = 0;
+    static final int VIEW_TYPE_CELL = 1;
+
+    //id used for the single "no photos" placeholder row
+    private static final long EMPTY_ITEM_ID = 0;
+
     private List<Photo> mPhotoList;
     private Context mContext;
+    private final FrameMetricsMonitor mFrameMonitor;
+    private final MainThreadWatchdog mWatchdog = MainThreadWatchdog.getInstance();
+    private int mLayoutMode = LAYOUT_LIST;
+
+    /*
+        the recyclerView uses stable ids to match old and new rows when the data changes, so instead of
+        rebinding every row it only rebinds the ones that really changed. Each image URL gets its own id
+        the first time we see it and keeps it for as long as the adapter lives
+     */
+    private final Map<String, Long> mItemIds = new HashMap<>();
+    private long mNextItemId = EMPTY_ITEM_ID + 1;
+
+    //a row the RowPreinflater inflated in the background, only set while createViewHolderFor is running
+    private View mPreinflatedView = null;
 
     public FlickrRecyclerViewAdapter(Context context, List<Photo> photoList) {
         mContext = context;
         mPhotoList = photoList;
+        mFrameMonitor = FrameMetricsMonitor.getInstance(context);
+        setHasStableIds(true);
+    }
+
+
+    void setLayoutMode(int layoutMode) {
+        if(layoutMode != mLayoutMode) {
+            mLayoutMode = layoutMode;
+            notifyDataSetChanged();
+        }
+    }
+
+    int getLayoutMode() {
+        return mLayoutMode;
+    }
+
+
+    @Override
+    public int getItemViewType(int position) {
+        return (mLayoutMode == LAYOUT_LIST) ? VIEW_TYPE_ROW : VIEW_TYPE_CELL;
     }
 
 
+    @Override
+    public long getItemId(int position) {
+        Photo photo = getPhoto(position);
+        if(photo == null) {
+            return EMPTY_ITEM_ID;
+        }
+        Long id = mItemIds.get(photo.getImage());
+        if(id == null) {
+            id = mNextItemId++;
+            mItemIds.put(photo.getImage(), id);
+        }
+        return id;
+    }
+
 
 
 
+
+    static int getLayoutForViewType(int viewType) {
+        return (viewType == VIEW_TYPE_CELL) ? R.layout.browse_grid : R.layout.browse;
+    }
+
+
     //inflate a view from the browse xml layout and then return the view
     @Override
     public FlickrImageViewHolder onCreateViewHolder(ViewGroup parent, int viewType) {
         //called by the layout manager when it needs a new view
         Log.d(TAG, "onCreateViewHolder: new view requested");
-        View view = LayoutInflater.from(parent.getContext()).inflate(R.layout.browse, parent, false);
+        View view = mPreinflatedView;
+        mPreinflatedView = null;
+        if(view == null) {
+            view = LayoutInflater.from(parent.getContext()).inflate(getLayoutForViewType(viewType), parent, false);
+        }
         return new FlickrImageViewHolder(view);
     }
 
 
+    /*
+        makes a view holder for a row that was inflated ahead of time. It still goes through
+        createViewHolder so the holder gets its view type, and onCreateViewHolder takes the view from the
+        one slot instead of inflating a new one. The slot is only filled for the length of this call
+     */
+    FlickrImageViewHolder createViewHolderFor(ViewGroup parent, int viewType, View view) {
+        mPreinflatedView = view;
+        try {
+            return createViewHolder(parent, viewType);
+        } finally {
+            mPreinflatedView = null;
+        }
+    }
+
+
 
     //called by the recyclerView when it wants new data to be stored in a viewholder so that it can
     //display it. as the items are scolled off the screen, the recycler view will provide a recycled viewholder
@@ -71,25 +162,98 @@ class FlickrRecyclerViewAdapter extends RecyclerView.Adapter<FlickrRecyclerViewA
             IF no image can be found, display thumbnail and 'no photos match method'
 
          */
+        mFrameMonitor.beginPhase(FrameMetricsMonitor.Phase.BIND);
+        mWatchdog.enter(MainThreadWatchdog.Section.BIND);
         if((mPhotoList == null) || (mPhotoList.size() == 0)) {
+            holder.thumbnail.setAspectRatio(AspectRatioImageView.DEFAULT_ASPECT_RATIO);
+            ImageScheduler.getInstance().cancel(holder.thumbnail);
             holder.thumbnail.setImageResource(R.drawable.placeholder);
-            holder.title.setText(R.string.empty_photo);
+            holder.title.setText(mContext.getString(R.string.empty_photo));
         } else {
-            Photo photoItem = mPhotoList.get(position);
+            final Photo photoItem = mPhotoList.get(position);
             Log.d(TAG, "onBindViewHolder: " + photoItem.getTitle() + " --> " + position);
-            Picasso.with(mContext).load(photoItem.getImage())
-                    .error(R.drawable.placeholder)
-                    .placeholder(R.drawable.placeholder)
-                    .into(holder.thumbnail);
 
+            /*
+                reserve the space for the thumbnail before it's downloaded. The grid uses square cells so
+                every row of the grid is the same height, the other layouts use the shape of the photo
+             */
+            if(mLayoutMode == LAYOUT_GRID) {
+                holder.thumbnail.setAspectRatio(1f);
+            } else {
+                holder.thumbnail.setAspectRatio(AspectRatioCache.get(photoItem));
+            }
+
+            //when the thumbnail is already in picasso's memory cache it gets set on the imageView right here
+            mFrameMonitor.beginPhase(FrameMetricsMonitor.Phase.IMAGE_DECODE);
+            //the size of thumbnail we ask for depends on how fast the connection is
+            String imageUrl = BandwidthEstimator.getInstance().chooseThumbnailUrl(photoItem.getImage());
+            //if we've seen this photo before, its tiny preview stands in until the thumbnail arrives
+            Drawable placeholder = PhotoPreview.getPlaceholder(mContext, photoItem);
+            RequestCreator request = ImageLoader.get(mContext).load(imageUrl)
+                    .error(R.drawable.placeholder)
+                    .placeholder(placeholder);
+
+            final AspectRatioImageView thumbnail = holder.thumbnail;
+            Callback callback = null;
+            if(mLayoutMode == LAYOUT_LIST) {
+                //the list shows the whole thumbnail, so once it arrives we know its real shape
+                callback = new Callback() {
+                    @Override
+                    public void onSuccess() {
+                        AspectRatioCache.learn(photoItem, thumbnail.getDrawable());
+                        PhotoPreview.learn(photoItem, thumbnail.getDrawable());
+                    }
+
+                    @Override
+                    public void onError() {
+                    }
+                };
+            } else {
+                //cells are smaller than the thumbnail, so only decode as much as the cell can show
+                request = request.fit().centerCrop();
+
+                //square grid cells crop the photo, which would make a misleading preview
+                if(mLayoutMode != LAYOUT_GRID) {
+                    callback = new Callback() {
+                        @Override
+                        public void onSuccess() {
+                            PhotoPreview.learn(photoItem, thumbnail.getDrawable());
+                        }
+
+                        @Override
+                        public void onError() {
+                        }
+                    };
+                }
+            }
+
+            //the row is on screen, so its thumbnail goes ahead of any prefetching
+            ImageScheduler.getInstance().into(mContext, ImageScheduler.Priority.VISIBLE, imageUrl, request,
+                    thumbnail, placeholder, callback);
+            mFrameMonitor.endPhase(FrameMetricsMonitor.Phase.IMAGE_DECODE);
+
+            //the title was laid out in the background when this photo was parsed, this just attaches it
             holder.title.setText(photoItem.getTitle());
         }
+        mWatchdog.exit(MainThreadWatchdog.Section.BIND);
+        mFrameMonitor.endPhase(FrameMetricsMonitor.Phase.BIND);
     }
 
 
 
 
 
+    /*
+        the row has scrolled off and is going back to the pool, so its thumbnail isn't wanted any more.
+        Without this the download would carry on using bandwidth the rows on screen need
+     */
+    @Override
+    public void onViewRecycled(FlickrImageViewHolder holder) {
+        ImageScheduler.getInstance().cancel(holder.thumbnail);
+        super.onViewRecycled(holder);
+    }
+
+
     @Override
     public int getItemCount() {
         //returns the numbers of photos in the list
@@ -102,8 +266,48 @@ class FlickrRecyclerViewAdapter extends RecyclerView.Adapter<FlickrRecyclerViewA
     //when the query changes and new data is downloaded, we need to be able to provide the adapter with
     //the new list
     void loadNewData(List<Photo> newPhoto) {
+        mWatchdog.enter(MainThreadWatchdog.Section.LOAD_NEW_DATA);
         mPhotoList = newPhoto;
+        trimItemIds();
         notifyDataSetChanged(); //tells the recyclerview that the data has changed so it can refresh the display
+        mWatchdog.exit(MainThreadWatchdog.Section.LOAD_NEW_DATA);
+    }
+
+
+    /*
+        forgets the ids of photos that aren't in the list any more, otherwise the map would keep one
+        entry for every photo of every refresh and search. Photos that are still here keep their ids,
+        so the recyclerView can still match their rows
+     */
+    private void trimItemIds() {
+        if(mItemIds.isEmpty()) {
+            return;
+        }
+        Set<String> current = new HashSet<>();
+        if(mPhotoList != null) {
+            for(Photo photo : mPhotoList) {
+                current.add(photo.getImage());
+            }
+        }
+        mItemIds.keySet().retainAll(current);
+    }
+
+
+    /*
+        adds photos to the end of the list as they arrive in streaming mode. Only the new rows are
+        inserted, so the rows already on screen aren't rebound. If all we had was the "no photos" row
+        then everything has changed anyway
+     */
+    void appendData(List<Photo> morePhotos) {
+        if((mPhotoList == null) || (mPhotoList.size() == 0)) {
+            mPhotoList = new ArrayList<>(morePhotos);
+            notifyDataSetChanged();
+            return;
+        }
+
+        int start = mPhotoList.size();
+        mPhotoList.addAll(morePhotos);
+        notifyItemRangeInserted(start, morePhotos.size());
     }
 
 
@@ -115,6 +319,12 @@ class FlickrRecyclerViewAdapter extends RecyclerView.Adapter<FlickrRecyclerViewA
     }
 
 
+    //a copy of all the photos, for handing to the detail screen so it can page through them
+    ArrayList<Photo> getPhotos() {
+        return (mPhotoList != null) ? new ArrayList<>(mPhotoList) : new ArrayList<Photo>();
+    }
+
+
 
     /*
         when using a recyclerView, the viewholder has to be available to our adapter, which is in the
@@ -126,14 +336,14 @@ class FlickrRecyclerViewAdapter extends RecyclerView.Adapter<FlickrRecyclerViewA
     //by making it static, it behaves just like an ordinary top level class
     static class FlickrImageViewHolder extends RecyclerView.ViewHolder {
         private static final String TAG = "FlickrImageViewHolder";
-        ImageView thumbnail = null;
-        TextView title = null;
+        AspectRatioImageView thumbnail = null;
+        TitleView title = null;
 
         public FlickrImageViewHolder(View itemView) {
             super(itemView);
             Log.d(TAG, "FlickrImageViewHolder starts");
-            this.thumbnail = (ImageView) itemView.findViewById(R.id.thumbnail);
-            this.title = (TextView) itemView.findViewById(R.id.title);
+            this.thumbnail = (AspectRatioImageView) itemView.findViewById(R.id.thumbnail);
+            this.title = (TitleView) itemView.findViewById(R.id.title);
         }
     }
 }
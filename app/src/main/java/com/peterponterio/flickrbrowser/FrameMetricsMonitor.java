@@ -0,0 +1,253 @@
+package com.peterponterio.flickrbrowser;
+
+import android.content.Context;
+import android.support.v7.widget.RecyclerView;
+import android.util.Log;
+import android.view.Choreographer;
+import android.view.WindowManager;
+
+import java.util.Arrays;
+
+/*
+    Collects frame durations while a RecyclerView is scrolling so we can see how smooth the list is.
+
+    The Choreographer calls doFrame once per vsync with the time the frame started. The difference
+    between two callbacks is how long the previous frame took. Anything longer than one refresh
+    interval means at least one frame was dropped.
+
+    The adapter, layout manager and touch listener wrap their work in beginPhase/endPhase so that
+    when a frame is slow we can say which phase spent the most time in it. Phases can be nested (a
+    bind happens inside a layout pass), so each phase only gets charged its own time, not the time
+    of the phases nested inside it.
+
+    Everything here runs on the main thread, so there's no locking.
+ */
+class FrameMetricsMonitor implements Choreographer.FrameCallback {
+    private static final String TAG = "FrameMetricsMonitor";
+
+    enum Phase { BIND, LAYOUT, IMAGE_DECODE, TOUCH }
+
+    //a frame counts as slow (jank) once it takes longer than one and a half refresh intervals
+    private static final float SLOW_FRAME_FACTOR = 1.5f;
+
+    //enough for a little over 30 seconds of scrolling at 60fps, older frames get overwritten
+    private static final int MAX_FRAMES = 2048;
+    private static final int MAX_PHASE_DEPTH = 8;
+
+    private static FrameMetricsMonitor sInstance = null;
+
+    private final long mFrameIntervalNanos;
+
+    private final long[] mFrameDurations = new long[MAX_FRAMES];
+    private int mFrameCount = 0;
+    private long mTotalFrames = 0;
+    private long mDroppedFrames = 0;
+    private long mSlowFrames = 0;
+
+    //one extra slot on the end for slow frames that none of our phases can account for (draw, GC, etc)
+    private final long[] mSlowFramesByPhase = new long[Phase.values().length + 1];
+    private final long[] mTotalPhaseNanos = new long[Phase.values().length];
+    private final long[] mFramePhaseNanos = new long[Phase.values().length];
+
+    private final Phase[] mPhaseStack = new Phase[MAX_PHASE_DEPTH];
+    private final long[] mPhaseStart = new long[MAX_PHASE_DEPTH];
+    private final long[] mPhaseChildNanos = new long[MAX_PHASE_DEPTH];
+    private int mPhaseDepth = 0;
+
+    private boolean mMonitoring = false;
+    private boolean mFrameCallbackPosted = false;
+    private long mLastFrameTimeNanos = 0;
+
+    private final RecyclerView.OnScrollListener mScrollListener = new RecyclerView.OnScrollListener() {
+        @Override
+        public void onScrollStateChanged(RecyclerView recyclerView, int newState) {
+            //start recording as soon as the list starts moving and stop once it's settled again
+            if(newState == RecyclerView.SCROLL_STATE_IDLE) {
+                stopMonitoring();
+            } else {
+                startMonitoring();
+            }
+        }
+    };
+
+
+    static FrameMetricsMonitor getInstance(Context context) {
+        if(sInstance == null) {
+            sInstance = new FrameMetricsMonitor(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+
+    private FrameMetricsMonitor(Context context) {
+        WindowManager windowManager = (WindowManager) context.getSystemService(Context.WINDOW_SERVICE);
+        float refreshRate = windowManager.getDefaultDisplay().getRefreshRate();
+        if(refreshRate < 1.0f) {
+            refreshRate = 60.0f;
+        }
+        mFrameIntervalNanos = (long) (1000000000L / refreshRate);
+        Log.d(TAG, "FrameMetricsMonitor: frame interval is " + mFrameIntervalNanos + "ns");
+    }
+
+
+    void attach(RecyclerView recyclerView) {
+        recyclerView.removeOnScrollListener(mScrollListener);
+        recyclerView.addOnScrollListener(mScrollListener);
+    }
+
+    void detach(RecyclerView recyclerView) {
+        recyclerView.removeOnScrollListener(mScrollListener);
+        stopMonitoring();
+    }
+
+
+    void beginPhase(Phase phase) {
+        if(!mMonitoring || mPhaseDepth >= MAX_PHASE_DEPTH) {
+            return;
+        }
+        mPhaseStack[mPhaseDepth] = phase;
+        mPhaseStart[mPhaseDepth] = System.nanoTime();
+        mPhaseChildNanos[mPhaseDepth] = 0;
+        mPhaseDepth++;
+    }
+
+
+    void endPhase(Phase phase) {
+        //monitoring may have started half way through a phase, in which case there's nothing to end
+        if(mPhaseDepth == 0 || mPhaseStack[mPhaseDepth - 1] != phase) {
+            return;
+        }
+        mPhaseDepth--;
+        long elapsed = System.nanoTime() - mPhaseStart[mPhaseDepth];
+        long own = elapsed - mPhaseChildNanos[mPhaseDepth];
+        mFramePhaseNanos[phase.ordinal()] += own;
+        mTotalPhaseNanos[phase.ordinal()] += own;
+
+        //the enclosing phase shouldn't be charged for the time we just spent
+        if(mPhaseDepth > 0) {
+            mPhaseChildNanos[mPhaseDepth - 1] += elapsed;
+        }
+    }
+
+
+    private void startMonitoring() {
+        if(mMonitoring) {
+            return;
+        }
+        Log.d(TAG, "startMonitoring: starts");
+        mMonitoring = true;
+        mLastFrameTimeNanos = 0;
+        mPhaseDepth = 0;
+        Arrays.fill(mFramePhaseNanos, 0);
+        if(!mFrameCallbackPosted) {
+            mFrameCallbackPosted = true;
+            Choreographer.getInstance().postFrameCallback(this);
+        }
+    }
+
+    private void stopMonitoring() {
+        if(mMonitoring) {
+            Log.d(TAG, "stopMonitoring: starts");
+        }
+        mMonitoring = false;
+        mPhaseDepth = 0;
+    }
+
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        mFrameCallbackPosted = false;
+        if(!mMonitoring) {
+            return;
+        }
+
+        if(mLastFrameTimeNanos != 0) {
+            recordFrame(frameTimeNanos - mLastFrameTimeNanos);
+        }
+        mLastFrameTimeNanos = frameTimeNanos;
+        Arrays.fill(mFramePhaseNanos, 0);
+
+        mFrameCallbackPosted = true;
+        Choreographer.getInstance().postFrameCallback(this);
+    }
+
+
+    private void recordFrame(long durationNanos) {
+        mFrameDurations[(int) (mTotalFrames % MAX_FRAMES)] = durationNanos;
+        mTotalFrames++;
+        if(mFrameCount < MAX_FRAMES) {
+            mFrameCount++;
+        }
+
+        //a frame that took 3 intervals means the 2 frames in between were never drawn
+        long missed = (durationNanos + mFrameIntervalNanos / 2) / mFrameIntervalNanos - 1;
+        if(missed > 0) {
+            mDroppedFrames += missed;
+        }
+
+        if(durationNanos > mFrameIntervalNanos * SLOW_FRAME_FACTOR) {
+            mSlowFrames++;
+
+            //blame the phase that spent the most time in this frame
+            int worst = Phase.values().length;
+            long worstNanos = 0;
+            for(int i = 0; i < mFramePhaseNanos.length; i++) {
+                if(mFramePhaseNanos[i] > worstNanos) {
+                    worstNanos = mFramePhaseNanos[i];
+                    worst = i;
+                }
+            }
+            mSlowFramesByPhase[worst]++;
+        }
+    }
+
+
+    //returns the requested percentile (0 - 100) of the recorded frame durations in milliseconds
+    float getPercentileMillis(float percentile) {
+        if(mFrameCount == 0) {
+            return 0f;
+        }
+        long[] sorted = Arrays.copyOf(mFrameDurations, mFrameCount);
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(percentile / 100f * mFrameCount) - 1;
+        index = Math.max(0, Math.min(mFrameCount - 1, index));
+        return sorted[index] / 1000000f;
+    }
+
+
+    String getReport() {
+        StringBuilder report = new StringBuilder();
+        report.append("frames=").append(mTotalFrames)
+                .append(" dropped=").append(mDroppedFrames)
+                .append(" slow=").append(mSlowFrames)
+                .append(" p50=").append(getPercentileMillis(50)).append("ms")
+                .append(" p90=").append(getPercentileMillis(90)).append("ms")
+                .append(" p95=").append(getPercentileMillis(95)).append("ms")
+                .append(" p99=").append(getPercentileMillis(99)).append("ms");
+
+        Phase[] phases = Phase.values();
+        for(int i = 0; i < phases.length; i++) {
+            report.append(" | ").append(phases[i])
+                    .append(" slow=").append(mSlowFramesByPhase[i])
+                    .append(" total=").append(mTotalPhaseNanos[i] / 1000000).append("ms");
+        }
+        report.append(" | OTHER slow=").append(mSlowFramesByPhase[phases.length]);
+        return report.toString();
+    }
+
+
+    void logReport() {
+        Log.d(TAG, "logReport: " + getReport());
+    }
+
+
+    void reset() {
+        mFrameCount = 0;
+        mTotalFrames = 0;
+        mDroppedFrames = 0;
+        mSlowFrames = 0;
+        Arrays.fill(mSlowFramesByPhase, 0);
+        Arrays.fill(mTotalPhaseNanos, 0);
+        Arrays.fill(mFramePhaseNanos, 0);
+    }
+}
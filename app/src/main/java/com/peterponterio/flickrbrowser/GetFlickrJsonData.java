@@ -2,29 +2,69 @@ package com.peterponterio.flickrbrowser;
 
 import android.net.Uri;
 import android.os.AsyncTask;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.v4.util.LruCache;
 import android.util.Log;
 
-import org.json.JSONArray;
 import org.json.JSONException;
-import org.json.JSONObject;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /**
  * Created by peterponterio on 2/17/18.
  */
 
 //implemented the interface so we can get the callbacks from GetRawData
-class GetFlickrJsonData extends AsyncTask<String, Void, List<Photo>> implements GetRawData.OnDownloadComplete {
+class GetFlickrJsonData extends AsyncTask<String, GetFlickrJsonData.PhotoChunk, List<Photo>> implements GetRawData.OnDownloadComplete {
     private static final String TAG = "GetFlickrJsonData";
 
+    //the description field contains an html img tag with the size of the thumbnail in it. It's matched
+    //in the feed text before it's unescaped, so the quotes may still have backslashes in front of them
+    private static final Pattern IMAGE_SIZE_PATTERN =
+            Pattern.compile("width=\\\\?\"(\\d+)\\\\?\" height=\\\\?\"(\\d+)\\\\?\"");
+
+    //photos from recent downloads, keyed by image URL, shared by every GetFlickrJsonData so that a
+    //refresh can hand back the same objects for items that haven't changed
+    private static final int MAX_RECENT_PHOTOS = 200;
+    private static final LruCache<String, Photo> sRecentPhotos = new LruCache<>(MAX_RECENT_PHOTOS);
+
+    static {
+        //a photo is up to six short strings. The ones left out of a new feed are dropped, so the cache only
+        //keeps the latest feed's text alive
+        MemoryBudget.getInstance().register(new MemoryBudget.LruCacheConsumer("RecentPhotos", sRecentPhotos, 1024));
+    }
+
     //store a list of photo objects that we parse out of the json data
     private List<Photo> mPhotoList = null;
     private String mBaseURL;
     private String mLanguage;
     private boolean mMatchAll;
 
+    /*
+        in streaming mode the photos are handed over a few at a time while the rest of the feed is still
+        being parsed, so the first screenful can be shown without waiting for the whole feed. 0 means
+        streaming is off and everything arrives in one go
+     */
+    private static final int STREAMING_BATCH_SIZE = 25;
+    private int mFirstChunkSize = 0;
+    private int mDeliveredCount = 0;
+
+    //whether a big feed may be split across the cores, see ParallelItemParser
+    private boolean mParallelParsing = true;
+
+    //set on the parse thread once the last chunk has gone, before onDataAvailable is posted
+    private volatile boolean mEveryPhotoStreamed = false;
+
 
     /*This class calls GetRawData which runs asynchronously on a background thread which means
         anything using this GetFlickrJsonData class wont get any data back immediately
@@ -35,8 +75,29 @@ class GetFlickrJsonData extends AsyncTask<String, Void, List<Photo>> implements
     private final OnDataAvailable mCallBack;
     private boolean runningOnSameThread = false;
 
+    //when the FeedPipeline runs us, onDownloadComplete is called on a parse thread and has to hand the
+    //result back to the main thread itself
+    private boolean runningOnPipeline = false;
+    private static final Handler sMainHandler = new Handler(Looper.getMainLooper());
+
     interface OnDataAvailable {
         void onDataAvailable(List<Photo> data, DownloadStatus status);
+
+        //only called in streaming mode, start is the position of the first photo of the chunk in the
+        //complete list. onDataAvailable is still called with everything once the feed is finished
+        void onDataChunkAvailable(List<Photo> chunk, int start);
+    }
+
+
+    //a batch of photos on its way from the background thread to onProgressUpdate
+    static class PhotoChunk {
+        final List<Photo> mPhotos;
+        final int mStart;
+
+        PhotoChunk(List<Photo> photos, int start) {
+            mPhotos = photos;
+            mStart = start;
+        }
     }
 
 
@@ -64,6 +125,43 @@ class GetFlickrJsonData extends AsyncTask<String, Void, List<Photo>> implements
     }
 
 
+    /*
+        downloads and parses the feed on the FeedPipeline rather than on this task's own thread, so
+        the download of one feed can overlap the parsing of another. The results come back through the
+        callback on the main thread, the same as with execute. The task can still be cancelled with
+        cancel(), it just never runs doInBackground
+     */
+    void executeOnPipeline(String searchCriteria) {
+        Log.d(TAG, "executeOnPipeline starts");
+        runningOnPipeline = true;
+        String destinationUri = createUri(searchCriteria, mLanguage, mMatchAll);
+        if(!FeedPipeline.getInstance().submit(destinationUri, this)) {
+            deliverOnMainThread(DownloadStatus.FAILED_OR_EMPTY);
+        }
+    }
+
+
+    /*
+        turns on streaming mode. firstChunkSize should be about one screenful, so that the screen can be
+        filled as soon as that many photos have been parsed, after that they arrive in bigger batches
+     */
+    void setStreaming(int firstChunkSize) {
+        mFirstChunkSize = firstChunkSize;
+    }
+
+
+    //parses this feed on its own thread however big it is, so it can be timed against a parallel parse
+    void setParallelParsing(boolean parallelParsing) {
+        mParallelParsing = parallelParsing;
+    }
+
+
+    //the photos from the last download that was processed, or null if there wasn't one
+    List<Photo> getPhotoList() {
+        return mPhotoList;
+    }
+
+
     @Override
     protected void onPostExecute(List<Photo> photos) {
         Log.d(TAG, "onPostExecute starts");
@@ -74,6 +172,15 @@ class GetFlickrJsonData extends AsyncTask<String, Void, List<Photo>> implements
         Log.d(TAG, "onPostExecute ends");
     }
 
+    @Override
+    protected void onProgressUpdate(PhotoChunk... chunks) {
+        if(mCallBack != null) {
+            for(PhotoChunk chunk : chunks) {
+                mCallBack.onDataChunkAvailable(chunk.mPhotos, chunk.mStart);
+            }
+        }
+    }
+
     @Override
     protected List<Photo> doInBackground(String... params) {
         Log.d(TAG, "doInBackground starts");
@@ -118,53 +225,75 @@ class GetFlickrJsonData extends AsyncTask<String, Void, List<Photo>> implements
         //As long as status is ok we can assign new arraylist to the photolist and then
         //process the json code
         if(status == DownloadStatus.OK) {
-            mPhotoList = new ArrayList<>(); //initialize to new array list to clear it out, ready to receive the data
-
             //get the array object and then we can go through the individual items and access
             //the values that we want back
             try{
-                JSONObject jsonData = new JSONObject(data);
-                JSONArray itemsArray = jsonData.getJSONArray("items");
-
-                //process the individual data
-                //going through each array entry that is in the JSON data
-                for(int i = 0; i<itemsArray.length(); i++) {
-                    JSONObject jsonPhoto = itemsArray.getJSONObject(i);
-                    String title = jsonPhoto.getString("title");
-                    String author = jsonPhoto.getString("author");
-                    String authorID = jsonPhoto.getString("author_id");
-                    String tags = jsonPhoto.getString("tags");
-
-                    JSONObject jsonMedia = jsonPhoto.getJSONObject("media");
-                    String photoUrl = jsonMedia.getString("m");
-
-                    /*
-                        photoURl will become the image field of the photo object so its parsed as the
-                        last parameter to the constructor because the last parameter in the constructor
-                        of the photo class sets the value of image (string image)
-
-                        We'll be using that field to display the image for each photo in the list
-
-                        When an item in the list is tapped, another activity is going to be launched
-                        to display the photo much larger so that it fills the screen and to do that we
-                        need to use the link value, which is why its separate to the photoURL
-
-                        getImage will give us the URL of the photo to show in the initial list and
-                        getLink will provide the URL of the full-size picture
-                     */
-
-                    //m and b represent a specific size of the photo, m being smaller and b being larger
-                    //grabs the photo which will have an 'm' in it and replaces the 'm' with a 'b'
-                    // so that the link is going to contain the url of the big version of the photo
-                    String link = photoUrl.replaceFirst("_m.", "_b.");
-
+                /*
+                    rather than parsing the whole feed into one big JSONObject first, find where each item
+                    starts and ends and parse them one at a time. That way the first photos are ready
+                    to be shown no matter how long the feed is
+                 */
+                final int[] itemSpans = FeedItemScanner.scanItems(data);
+                int itemCount = itemSpans.length / 2;
+                mPhotoList = new ArrayList<>(itemCount); //new list sized to hold every item, ready to receive the data
+                mDeliveredCount = 0;
+
+                /*
+                    the photos read their fields from the feed text when they're first asked for, so
+                    all we do here is note where each field is. Only the image URL is decoded straight
+                    away, because that's how we recognise photos we've seen before
+                 */
+                final FeedFieldSource source = new FeedFieldSource(data, itemCount);
+                final AtomicInteger reused = new AtomicInteger();
+
+                /*
+                    process the individual data, going through each array entry that is in the JSON data.
+                    Big feeds are split across every core on API 21 and up, anything smaller isn't worth
+                    the cost of splitting and is parsed here one item at a time
+                 */
+                int parsed = 0;
+                if(mParallelParsing && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP
+                        && itemCount - mFirstChunkSize >= ParallelItemParser.MIN_PARALLEL_ITEMS) {
+                    //the first screenful is parsed on its own so it can be shown before the rest are started
+                    for(; parsed < mFirstChunkSize && !isCancelled(); parsed++) {
+                        mPhotoList.add(parseItem(source, itemSpans, parsed, reused));
+                    }
+                    deliverChunkIfReady(false);
+
+                    //then the rest are parsed across all the cores and added in feed order, unless another
+                    //feed has the cores, when they're parsed below like a small feed. Once we've been
+                    //cancelled the rest of the items are skipped, and the loop here stops before it
+                    //reaches any of them
+                    Photo[] photos = new Photo[itemCount];
+                    boolean parallel = ParallelItemParser.tryParse(new ParallelItemParser.ItemParser() {
+                        @Override
+                        public Photo parseItem(int index) throws JSONException {
+                            return isCancelled() ? null : GetFlickrJsonData.parseItem(source, itemSpans, index, reused);
+                        }
+                    }, parsed, itemCount, photos);
+                    for(; parallel && parsed < itemCount && !isCancelled(); parsed++) {
+                        deliverChunkIfReady(false);
+                        mPhotoList.add(photos[parsed]);
+                    }
+                }
 
-                    //create photo object
-                    Photo photoObject = new Photo(title, author, authorID, link, tags, photoUrl);
-                    mPhotoList.add(photoObject); //add photo object to photo list
+                //cancel() only stops the results being delivered, so stop parsing as soon as we notice it too
+                for(; parsed < itemCount && !isCancelled(); parsed++) {
+                    deliverChunkIfReady(false);
+                    mPhotoList.add(parseItem(source, itemSpans, parsed, reused));
+                }
+                if(isCancelled()) {
+                    Log.d(TAG, "onDownloadComplete: cancelled after " + parsed + " of " + itemCount + " items");
+                    return;
+                }
+                deliverChunkIfReady(true);
+                dropUnmatchedRecentPhotos(mPhotoList);
 
-                    Log.d(TAG, "onDownloadComplete " + photoObject.toString());
+                //in streaming mode the chunks have had their titles laid out already
+                if(mFirstChunkSize <= 0) {
+                    TitleLayoutCache.precompute(mPhotoList);
                 }
+                Log.d(TAG, "onDownloadComplete: reused " + reused.get() + " of " + mPhotoList.size() + " photos");
             } catch(JSONException jsone) {
                 jsone.printStackTrace();
                 Log.e(TAG, "onDownloadComplete: Error processing Json data " + jsone.getMessage());
@@ -178,12 +307,176 @@ class GetFlickrJsonData extends AsyncTask<String, Void, List<Photo>> implements
             //now inform the caller that processing is done - possibly returning null if there
             //was an error
             mCallBack.onDataAvailable(mPhotoList, status);
+        } else if(runningOnPipeline) {
+            deliverOnMainThread(status);
         }
 
         Log.d(TAG, "onDownloadComplete ends");
     }
 
 
+    /*
+        posted to the main thread after any chunks that publishProgress has already posted, so the
+        callback still sees the chunks first and the complete list last
+     */
+    private void deliverOnMainThread(final DownloadStatus status) {
+        sMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if(mCallBack != null && !isCancelled()) {
+                    mCallBack.onDataAvailable(mPhotoList, status);
+                }
+            }
+        });
+    }
+
+
+    /*
+        in streaming mode, hands over the photos parsed since the last chunk once there are enough of
+        them. The first chunk is one screenful, the rest are batches. At the end of the feed whatever's
+        left is sent regardless of size
+     */
+    private void deliverChunkIfReady(boolean endOfFeed) {
+        if(mFirstChunkSize <= 0 || mCallBack == null) {
+            return;
+        }
+
+        int pending = mPhotoList.size() - mDeliveredCount;
+        int wanted = (mDeliveredCount == 0) ? mFirstChunkSize : STREAMING_BATCH_SIZE;
+        if(pending <= 0 || (!endOfFeed && pending < wanted)) {
+            //the last batch can come out exactly full, then there's nothing left to send at the end. An
+            //empty feed never sends anything, so it isn't counted as streamed
+            if(endOfFeed && pending <= 0 && mDeliveredCount > 0) {
+                mEveryPhotoStreamed = true;
+            }
+            return;
+        }
+
+        //copy the photos so the receiver's list isn't shared with the one we're still adding to
+        PhotoChunk chunk = new PhotoChunk(new ArrayList<>(mPhotoList.subList(mDeliveredCount, mPhotoList.size())),
+                mDeliveredCount);
+        mDeliveredCount = mPhotoList.size();
+        Log.d(TAG, "deliverChunkIfReady: " + chunk.mPhotos.size() + " photos from " + chunk.mStart);
+
+        //we're still on the background thread, so lay the titles out now rather than when the rows are bound
+        TitleLayoutCache.precompute(chunk.mPhotos);
+
+        if(runningOnSameThread) {
+            mCallBack.onDataChunkAvailable(chunk.mPhotos, chunk.mStart);
+        } else {
+            publishProgress(chunk);
+        }
+        if(endOfFeed) {
+            mEveryPhotoStreamed = true;
+        }
+    }
+
+
+    /*
+        true once streaming mode has handed over every photo of the feed in chunks, so onDataAvailable has
+        nothing new to show. False for an empty feed, which still has to clear the list
+     */
+    boolean isEveryPhotoStreamed() {
+        return mEveryPhotoStreamed;
+    }
+
+
+    /*
+        makes the photo for item index of the feed, or hands back the one we made last time if it hasn't
+        changed. It can be called on several threads at once when the feed is parsed in parallel
+     */
+    private static Photo parseItem(FeedFieldSource source, int[] itemSpans, int index, AtomicInteger reused)
+            throws JSONException {
+        source.scanItem(index, itemSpans[2 * index], itemSpans[2 * index + 1]);
+
+        /*
+            getImage will give us the URL of the photo to show in the initial list and getLink will
+            provide the URL of the full-size picture, which is worked out from the image URL by the
+            source when the photo is opened
+         */
+        Photo photoObject = new Photo(source, index, parseAspectRatio(source.getJson(),
+                source.getDescriptionStart(index), source.getDescriptionEnd(index)));
+        String photoUrl = photoObject.getImage();
+
+        //if we've seen this photo on an earlier refresh and it hasn't changed, just use the
+        //same photo object again instead of the new one
+        Photo recentPhoto = findRecentPhoto(photoUrl, source, index);
+        if(recentPhoto != null) {
+            //it goes on living in the new list, so it reads anything it hasn't fetched yet from this feed
+            //instead of keeping the one it came from alive
+            recentPhoto.rebind(source, index);
+            reused.incrementAndGet();
+            return recentPhoto;
+        }
+
+        sRecentPhotos.put(photoUrl, photoObject);
+        return photoObject;
+    }
+
+
+    /*
+        the photos kept for reuse that weren't in the feed we just parsed would keep the whole text of the
+        feed they came from alive. They're unlikely to come back, so rather than fetching their fields to
+        let go of it, they're dropped. The ones that were in it have been moved to the new feed already
+     */
+    private static void dropUnmatchedRecentPhotos(List<Photo> photos) {
+        Set<Photo> matched = Collections.newSetFromMap(new IdentityHashMap<Photo, Boolean>(photos.size()));
+        matched.addAll(photos);
+
+        int dropped = 0;
+        for(Map.Entry<String, Photo> entry : sRecentPhotos.snapshot().entrySet()) {
+            if(!matched.contains(entry.getValue())) {
+                sRecentPhotos.remove(entry.getKey());
+                dropped++;
+            }
+        }
+        Log.d(TAG, "dropUnmatchedRecentPhotos: dropped " + dropped + " photos");
+    }
+
+
+    /*
+        returns the photo we built for this image URL last time, as long as its title and tags are still
+        the same. They're compared against the feed text where they are, so checking an unchanged item
+        doesn't allocate anything
+     */
+    private static Photo findRecentPhoto(String photoUrl, FeedFieldSource source, int index) {
+        Photo recentPhoto = sRecentPhotos.get(photoUrl);
+        if(recentPhoto == null) {
+            return null;
+        }
+        if(source.fieldEquals(index, Photo.FIELD_TITLE, recentPhoto.getTitle())
+                && source.fieldEquals(index, Photo.FIELD_TAGS, recentPhoto.getTags())) {
+            return recentPhoto;
+        }
+        return null;
+    }
+
+
+    /*
+        knowing the shape of the thumbnail before it's downloaded lets the list reserve the right amount
+        of space for it, so the row doesn't change size when the real image replaces the placeholder
+     */
+    private static float parseAspectRatio(String json, int descriptionStart, int descriptionEnd) {
+        if(descriptionStart < 0) {
+            return 0f;
+        }
+        Matcher matcher = IMAGE_SIZE_PATTERN.matcher(json);
+        matcher.region(descriptionStart, descriptionEnd);
+        if(matcher.find()) {
+            try {
+                float width = Float.parseFloat(matcher.group(1));
+                float height = Float.parseFloat(matcher.group(2));
+                if(width > 0) {
+                    return height / width;
+                }
+            } catch(NumberFormatException e) {
+                Log.e(TAG, "parseAspectRatio: Invalid image size " + e.getMessage());
+            }
+        }
+        return 0f;
+    }
+
+
 
 
 
@@ -109,8 +109,13 @@ class GetRawData extends AsyncTask<String, Void, String> {
             //opens connection
             connection = (HttpURLConnection) url.openConnection();
             connection.setRequestMethod("GET"); //uses GET request
+
+            //time how long the server takes to answer and how long the data takes to arrive, so the
+            //bandwidth estimator can keep track of how good the connection is
+            long requestStart = System.nanoTime();
             connection.connect();
             int response = connection.getResponseCode();
+            long responseStart = System.nanoTime();
             Log.d(TAG, "doInBackground: The response code was " + response);
 
             StringBuilder result = new StringBuilder();
@@ -121,7 +126,11 @@ class GetRawData extends AsyncTask<String, Void, String> {
              * When using readLine, the newline characters are stripped off at the end of each line that we get,
              * so we have to append them back onto the string that we're building up
              */
-            reader = new BufferedReader(new InputStreamReader(connection.getInputStream()));
+            //the metered stream counts the bytes as they arrive and tells the estimator once they've all
+            //been read, the length of the result would be in characters and missing the newlines
+            BandwidthEstimator.getInstance().addLatency(responseStart - requestStart);
+            reader = new BufferedReader(new InputStreamReader(
+                    new MeteredDownloader.MeteredInputStream(connection.getInputStream(), responseStart)));
 
             String line;
             //putting null first to draw attention to the assignment thats happening before the conditions test it
@@ -0,0 +1,200 @@
+package com.peterponterio.flickrbrowser;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.support.v4.util.LruCache;
+import android.util.Log;
+
+import com.squareup.picasso.Cache;
+import com.squareup.picasso.Picasso;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/*
+    Builds the one picasso object the whole app uses.
+
+    Picasso.with() would create its own memory cache that we can't get at, so instead we build picasso
+    ourselves with a cache that the MemoryBudget can shrink when memory runs low. Everywhere that loads
+    an image should use ImageLoader.get(context) rather than Picasso.with(context), otherwise there'd be
+    two picasso objects each with their own cache.
+ */
+class ImageLoader {
+    private static final String TAG = "ImageLoader";
+
+    private static Picasso sPicasso = null;
+    private static ImageMemoryCache sMemoryCache = null;
+    private static ThreadPoolExecutor sDownloadExecutor = null;
+
+    private ImageLoader() {
+    }
+
+
+    static synchronized Picasso get(Context context) {
+        if(sPicasso == null) {
+            Context appContext = context.getApplicationContext();
+            sMemoryCache = new ImageMemoryCache(calculateCacheSize(appContext));
+
+            MemoryBudget memoryBudget = MemoryBudget.getInstance();
+            memoryBudget.install(appContext);
+            memoryBudget.register(sMemoryCache);
+
+            /*
+                picasso downloads on this executor, and the bandwidth estimator decides how many downloads
+                run at once: on a slow connection several at a time just makes every one of them late
+             */
+            final BandwidthEstimator bandwidthEstimator = BandwidthEstimator.getInstance();
+            bandwidthEstimator.guessFromNetwork(appContext);
+            int threads = bandwidthEstimator.getMaxImageDownloads();
+            sDownloadExecutor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                    new LinkedBlockingQueue<Runnable>());
+            bandwidthEstimator.addListener(new BandwidthEstimator.OnQualityChangedListener() {
+                @Override
+                public void onQualityChanged(int quality) {
+                    setDownloadThreads(bandwidthEstimator.getMaxImageDownloads());
+                }
+            });
+
+            sPicasso = new Picasso.Builder(appContext)
+                    .memoryCache(sMemoryCache)
+                    .downloader(new MeteredDownloader(appContext))
+                    .executor(sDownloadExecutor)
+                    .build();
+        }
+        return sPicasso;
+    }
+
+
+    /*
+        true if some version of this image is in the memory cache, so loading it won't need the network.
+        Used by the ImageScheduler to let those loads skip its queue
+     */
+    static synchronized boolean isInMemoryCache(String url) {
+        return (sMemoryCache != null) && (url != null) && sMemoryCache.containsUrl(url);
+    }
+
+
+    private static void setDownloadThreads(int threads) {
+        Log.d(TAG, "setDownloadThreads: " + threads);
+
+        //the core size can never be bigger than the maximum, so the order we change them in matters
+        if(threads > sDownloadExecutor.getMaximumPoolSize()) {
+            sDownloadExecutor.setMaximumPoolSize(threads);
+            sDownloadExecutor.setCorePoolSize(threads);
+        } else {
+            sDownloadExecutor.setCorePoolSize(threads);
+            sDownloadExecutor.setMaximumPoolSize(threads);
+        }
+    }
+
+
+    /*
+        same idea as picasso's own default, about a seventh of the memory the system gives each app,
+        but on low memory devices we take less so the rest of the app has some room
+     */
+    private static int calculateCacheSize(Context context) {
+        ActivityManager activityManager = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        int memoryClassMegabytes = activityManager.getMemoryClass();
+        int divisor = (memoryClassMegabytes <= 64) ? 12 : 7;
+        int size = memoryClassMegabytes * 1024 * 1024 / divisor;
+        Log.d(TAG, "calculateCacheSize: " + size + " bytes");
+        return size;
+    }
+
+
+    /*
+        a bitmap cache sized in bytes that picasso can use and the memory budget can trim.
+
+        picasso's keys are the url followed by a newline and then any resizing or cropping, so the same
+        url can be cached more than once. We count how many entries each url has, so we can tell whether
+        a url is cached at all without knowing how it was resized
+     */
+    static class ImageMemoryCache implements Cache, MemoryBudget.MemoryConsumer {
+        private final LruCache<String, Bitmap> mCache;
+        private final Map<String, Integer> mUrlCounts = new HashMap<>();
+
+        ImageMemoryCache(int maxBytes) {
+            mCache = new LruCache<String, Bitmap>(maxBytes) {
+                @Override
+                protected int sizeOf(String key, Bitmap value) {
+                    return value.getRowBytes() * value.getHeight();
+                }
+
+                @Override
+                protected void entryRemoved(boolean evicted, String key, Bitmap oldValue, Bitmap newValue) {
+                    //newValue is only set when an entry is replaced, which doesn't change the count
+                    if(newValue == null) {
+                        countUrl(key, -1);
+                    }
+                }
+            };
+        }
+
+        @Override
+        public Bitmap get(String key) {
+            return mCache.get(key);
+        }
+
+        @Override
+        public void set(String key, Bitmap bitmap) {
+            if(mCache.put(key, bitmap) == null) {
+                countUrl(key, 1);
+            }
+        }
+
+        boolean containsUrl(String url) {
+            synchronized(mUrlCounts) {
+                return mUrlCounts.containsKey(url);
+            }
+        }
+
+        private void countUrl(String key, int change) {
+            int newline = key.indexOf('\n');
+            String url = (newline >= 0) ? key.substring(0, newline) : key;
+            synchronized(mUrlCounts) {
+                Integer count = mUrlCounts.get(url);
+                int newCount = ((count == null) ? 0 : count) + change;
+                if(newCount > 0) {
+                    mUrlCounts.put(url, newCount);
+                } else {
+                    mUrlCounts.remove(url);
+                }
+            }
+        }
+
+        @Override
+        public int size() {
+            return mCache.size();
+        }
+
+        @Override
+        public int maxSize() {
+            return mCache.maxSize();
+        }
+
+        public void clear() {
+            mCache.evictAll();
+        }
+
+        @Override
+        public String getName() {
+            return "ImageMemoryCache";
+        }
+
+        @Override
+        public long getSizeBytes() {
+            return mCache.size();
+        }
+
+        @Override
+        public long trimToFraction(float fraction) {
+            int before = mCache.size();
+            mCache.trimToSize((int) (before * fraction));
+            return before - mCache.size();
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package com.peterponterio.flickrbrowser;
+
+import android.content.Context;
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
+import android.support.v7.widget.StaggeredGridLayoutManager;
+import android.util.Log;
+
+/*
+    Downloads the thumbnails of the photos just below the bottom of the screen while the user scrolls,
+    so they're already in picasso's cache by the time their rows are bound. They go through the
+    ImageScheduler at PREFETCH priority, so they only use bandwidth the rows on screen don't need.
+
+    How far ahead we look comes from the BandwidthEstimator: a long way on a fast connection, only a
+    couple of rows on a slow one where prefetching would compete with the images that are on screen.
+ */
+class ImagePrefetcher extends RecyclerView.OnScrollListener {
+    private static final String TAG = "ImagePrefetcher";
+
+    private final Context mContext;
+    private final FlickrRecyclerViewAdapter mAdapter;
+
+    //everything up to here has already been asked for, so we don't ask again on every scroll event
+    private int mPrefetchedUpTo = -1;
+
+    ImagePrefetcher(Context context, FlickrRecyclerViewAdapter adapter) {
+        mContext = context;
+        mAdapter = adapter;
+    }
+
+
+    //the adapter's data has been replaced, so nothing has been prefetched for it yet
+    void reset() {
+        mPrefetchedUpTo = -1;
+    }
+
+
+    /*
+        during a fling the rows below the screen go by too fast for prefetching them to be any use, so
+        the scheduler holds prefetches back until the list is being dragged or has stopped
+     */
+    @Override
+    public void onScrollStateChanged(RecyclerView recyclerView, int newState) {
+        ImageScheduler.getInstance().setLowPriorityPaused(newState == RecyclerView.SCROLL_STATE_SETTLING);
+    }
+
+
+    @Override
+    public void onScrolled(RecyclerView recyclerView, int dx, int dy) {
+        int lastVisible = findLastVisiblePosition(recyclerView.getLayoutManager());
+        if(lastVisible < 0) {
+            return;
+        }
+
+        BandwidthEstimator bandwidthEstimator = BandwidthEstimator.getInstance();
+        int end = Math.min(lastVisible + bandwidthEstimator.getPrefetchDistance(), mAdapter.getItemCount() - 1);
+        int start = Math.max(lastVisible + 1, mPrefetchedUpTo + 1);
+
+        for(int position = start; position <= end; position++) {
+            Photo photo = mAdapter.getPhoto(position);
+            if(photo != null) {
+                ImageScheduler.getInstance().fetch(mContext, ImageScheduler.Priority.PREFETCH,
+                        bandwidthEstimator.chooseThumbnailUrl(photo.getImage()));
+            }
+        }
+        if(end >= start) {
+            Log.d(TAG, "onScrolled: prefetched " + start + " to " + end);
+            mPrefetchedUpTo = end;
+        }
+    }
+
+
+    private static int findLastVisiblePosition(RecyclerView.LayoutManager layoutManager) {
+        //GridLayoutManager is a LinearLayoutManager too
+        if(layoutManager instanceof LinearLayoutManager) {
+            return ((LinearLayoutManager) layoutManager).findLastVisibleItemPosition();
+        }
+        if(layoutManager instanceof StaggeredGridLayoutManager) {
+            int[] positions = ((StaggeredGridLayoutManager) layoutManager).findLastVisibleItemPositions(null);
+            int last = RecyclerView.NO_POSITION;
+            for(int position : positions) {
+                last = Math.max(last, position);
+            }
+            return last;
+        }
+        return RecyclerView.NO_POSITION;
+    }
+}
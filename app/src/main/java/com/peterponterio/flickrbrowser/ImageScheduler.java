@@ -0,0 +1,467 @@
+package com.peterponterio.flickrbrowser;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.drawable.Drawable;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.widget.ImageView;
+
+import com.squareup.picasso.Callback;
+import com.squareup.picasso.Picasso;
+import com.squareup.picasso.RequestCreator;
+import com.squareup.picasso.Target;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/*
+    Decides which image gets downloaded next.
+
+    Picasso starts every request the moment it's made, in the order they're made, and keeps downloading
+    images for rows that have long since scrolled off the screen. Instead every image load goes through
+    here first, with a priority:
+
+        VISIBLE     a row that's on screen now
+        DETAIL      the photo the user opened in the detail screen
+        PREFETCH    rows just below the screen, and the detail pages either side of the current one
+        BACKGROUND  anything nobody is waiting for
+
+    Requests wait in a queue per priority and are started highest priority first, as long as fewer than
+    BandwidthEstimator.getMaxImageDownloads() are in flight. Each host gets one slot fewer than that, so
+    a slow host can't hold every slot while a request for another host waits behind it. Images that are
+    already in the memory cache don't need the network, so they skip the queue and are shown straight
+    away.
+
+    Requests are cancelled when the row they were for is recycled, when the same view is given another
+    image, or when the activity that made them stops. A download that isn't going through picasso can't
+    be stopped once it's started, so it keeps its place among the ones in flight until it's done. While
+    the list is flinging, PREFETCH and BACKGROUND requests are held back, because the rows they're for
+    will be out of date by the time it settles.
+
+    Everything here runs on the main thread.
+ */
+class ImageScheduler {
+    private static final String TAG = "ImageScheduler";
+
+    enum Priority {
+        VISIBLE,
+        DETAIL,
+        PREFETCH,
+        BACKGROUND
+    }
+
+    private static ImageScheduler sInstance = null;
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final ExecutorService mTaskExecutor = Executors.newCachedThreadPool();
+
+    //one queue per priority, indexed by Priority.ordinal()
+    private final List<ArrayDeque<Request>> mQueues = new ArrayList<>();
+    private final List<Request> mInFlight = new ArrayList<>();
+    private final Map<String, Integer> mInFlightByHost = new HashMap<>();
+
+    //the request for each view or target, so a new request for the same one replaces the old
+    private final Map<Object, Request> mRequestsByKey = new HashMap<>();
+
+    private boolean mLowPriorityPaused = false;
+    private long mStarted = 0;
+    private long mCancelled = 0;
+    private long mMemoryHits = 0;
+
+
+    static synchronized ImageScheduler getInstance() {
+        if(sInstance == null) {
+            sInstance = new ImageScheduler();
+        }
+        return sInstance;
+    }
+
+    private ImageScheduler() {
+        for(int i = 0; i < Priority.values().length; i++) {
+            mQueues.add(new ArrayDeque<Request>());
+        }
+    }
+
+
+    /*
+        loads an image into an imageView. request is the picasso request with everything but into()
+        already set up. The placeholder is shown while the request waits its turn. callback can be null
+     */
+    void into(Object owner, Priority priority, String url, RequestCreator request, ImageView imageView,
+              Drawable placeholder, Callback callback) {
+        cancel(imageView);
+        imageView.setImageDrawable(placeholder);
+        submit(new ImageViewRequest(owner, priority, url, request, imageView, callback));
+    }
+
+
+    //downloads and decodes an image into picasso's caches without showing it anywhere
+    void fetch(Context context, Priority priority, String url) {
+        if(url == null || ImageLoader.isInMemoryCache(url)) {
+            return;
+        }
+        submit(new FetchRequest(context, priority, url));
+    }
+
+
+    /*
+        runs a download that doesn't go through picasso, like the full size images in the detail screen,
+        on a background thread once it's this request's turn. key is what it's loading for so it can be
+        cancelled, it can be null
+     */
+    void execute(Object owner, Priority priority, String url, Object key, Runnable task) {
+        if(key != null) {
+            cancel(key);
+        }
+        submit(new TaskRequest(owner, priority, url, key, task));
+    }
+
+
+    //cancels whatever is loading into this view or for this key
+    void cancel(Object key) {
+        Request request = mRequestsByKey.get(key);
+        if(request != null) {
+            cancelRequest(request);
+            dispatch();
+        }
+    }
+
+
+    //cancels everything the owner asked for, returns how many requests that was
+    int cancelAll(Object owner) {
+        List<Request> cancelled = new ArrayList<>();
+        for(ArrayDeque<Request> queue : mQueues) {
+            for(Request request : queue) {
+                if(request.mOwner == owner) {
+                    cancelled.add(request);
+                }
+            }
+        }
+        for(Request request : mInFlight) {
+            //a task that was cancelled before is still in flight until it finishes
+            if(request.mOwner == owner && !request.mCancelRequested) {
+                cancelled.add(request);
+            }
+        }
+
+        for(Request request : cancelled) {
+            cancelRequest(request);
+        }
+        if(cancelled.size() > 0) {
+            Log.d(TAG, "cancelAll: cancelled " + cancelled.size() + " requests");
+            dispatch();
+        }
+        return cancelled.size();
+    }
+
+
+    //held back while the list flings, and started again once it stops
+    void setLowPriorityPaused(boolean paused) {
+        if(paused == mLowPriorityPaused) {
+            return;
+        }
+        mLowPriorityPaused = paused;
+        if(!paused) {
+            dispatch();
+        }
+    }
+
+
+    private void submit(Request request) {
+        if(request.mKey != null) {
+            mRequestsByKey.put(request.mKey, request);
+        }
+
+        //already in memory, so it won't use the network and there's no reason to wait
+        if(ImageLoader.isInMemoryCache(request.mUrl) && !(request instanceof TaskRequest)) {
+            mMemoryHits++;
+            start(request);
+            return;
+        }
+        mQueues.get(request.mPriority.ordinal()).addLast(request);
+        dispatch();
+    }
+
+
+    private void dispatch() {
+        Request request;
+        while(null != (request = takeNextRequest())) {
+            start(request);
+        }
+    }
+
+
+    /*
+        removes and returns the highest priority request that's allowed to start, or null if none are.
+        The request isn't started in here because starting one can finish it straight away, which
+        dispatches again and would change the queue while we're still looking through it
+     */
+    private Request takeNextRequest() {
+        int maxDownloads = BandwidthEstimator.getInstance().getMaxImageDownloads();
+        if(mInFlight.size() >= maxDownloads) {
+            return null;
+        }
+        int maxPerHost = Math.max(1, maxDownloads - 1);
+        for(Priority priority : Priority.values()) {
+            if(mLowPriorityPaused && priority.ordinal() >= Priority.PREFETCH.ordinal()) {
+                return null;
+            }
+            Iterator<Request> iterator = mQueues.get(priority.ordinal()).iterator();
+            while(iterator.hasNext()) {
+                Request request = iterator.next();
+
+                //this host is busy, but something further down the queue might be for another one
+                Integer hostCount = mInFlightByHost.get(request.mHost);
+                if(hostCount == null || hostCount < maxPerHost) {
+                    iterator.remove();
+                    return request;
+                }
+            }
+        }
+        return null;
+    }
+
+
+    private void start(Request request) {
+        mStarted++;
+        request.mStarted = true;
+        mInFlight.add(request);
+        Integer hostCount = mInFlightByHost.get(request.mHost);
+        mInFlightByHost.put(request.mHost, (hostCount == null) ? 1 : hostCount + 1);
+
+        //an image from the memory cache finishes before this returns
+        request.start();
+    }
+
+
+    //called by requests when they've finished, whether they worked or not
+    private void finish(Request request) {
+        if(release(request)) {
+            dispatch();
+        }
+    }
+
+
+    private void cancelRequest(Request request) {
+        mCancelled++;
+        request.mCancelRequested = true;
+        if(request.mStarted) {
+            request.cancel();
+        } else {
+            mQueues.get(request.mPriority.ordinal()).remove(request);
+        }
+
+        //a started task carries on downloading, so it keeps its slot until it calls finish. Only its key
+        //is let go, so that a new request for the same view can take its place
+        if(request.mStarted && !request.stopsWhenCancelled()) {
+            forgetKey(request);
+            return;
+        }
+        //doesn't dispatch, so that cancelAll can cancel everything before anything new is started
+        release(request);
+    }
+
+
+    //forgets the request, returns true if that freed up a slot for another one
+    private boolean release(Request request) {
+        if(request.mFinished) {
+            return false;
+        }
+        request.mFinished = true;
+        forgetKey(request);
+        if(!request.mStarted || !mInFlight.remove(request)) {
+            return false;
+        }
+        Integer hostCount = mInFlightByHost.get(request.mHost);
+        if(hostCount != null && hostCount > 1) {
+            mInFlightByHost.put(request.mHost, hostCount - 1);
+        } else {
+            mInFlightByHost.remove(request.mHost);
+        }
+        return true;
+    }
+
+
+    private void forgetKey(Request request) {
+        if(request.mKey != null && mRequestsByKey.get(request.mKey) == request) {
+            mRequestsByKey.remove(request.mKey);
+        }
+    }
+
+
+    String getReport() {
+        StringBuilder report = new StringBuilder();
+        report.append("started=").append(mStarted)
+                .append(" memoryHits=").append(mMemoryHits)
+                .append(" cancelled=").append(mCancelled)
+                .append(" inFlight=").append(mInFlight.size());
+        for(Priority priority : Priority.values()) {
+            report.append(" ").append(priority.name()).append("=").append(mQueues.get(priority.ordinal()).size());
+        }
+        return report.toString();
+    }
+
+    void logReport() {
+        Log.d(TAG, "logReport: " + getReport());
+    }
+
+
+    private static String hostOf(String url) {
+        String host = (url != null) ? Uri.parse(url).getHost() : null;
+        return (host != null) ? host : "";
+    }
+
+
+    private abstract class Request {
+        final Object mOwner;
+        final Priority mPriority;
+        final String mUrl;
+        final String mHost;
+        final Object mKey;
+        boolean mStarted = false;
+        boolean mCancelRequested = false;
+        boolean mFinished = false;
+
+        Request(Object owner, Priority priority, String url, Object key) {
+            mOwner = owner;
+            mPriority = priority;
+            mUrl = url;
+            mHost = hostOf(url);
+            mKey = key;
+        }
+
+        abstract void start();
+
+        //only called for requests that have started
+        abstract void cancel();
+
+        //whether cancel() really stops a started request, so its slot can go to another one straight away
+        boolean stopsWhenCancelled() {
+            return true;
+        }
+    }
+
+
+    private class ImageViewRequest extends Request implements Callback {
+        private final RequestCreator mRequest;
+        private final ImageView mImageView;
+        private final Callback mCallback;
+
+        ImageViewRequest(Object owner, Priority priority, String url, RequestCreator request, ImageView imageView,
+                         Callback callback) {
+            super(owner, priority, url, imageView);
+            mRequest = request;
+            mImageView = imageView;
+            mCallback = callback;
+        }
+
+        @Override
+        void start() {
+            mRequest.into(mImageView, this);
+        }
+
+        @Override
+        void cancel() {
+            ImageLoader.get(mImageView.getContext()).cancelRequest(mImageView);
+        }
+
+        @Override
+        public void onSuccess() {
+            finish(this);
+            if(mCallback != null) {
+                mCallback.onSuccess();
+            }
+        }
+
+        @Override
+        public void onError() {
+            finish(this);
+            if(mCallback != null) {
+                mCallback.onError();
+            }
+        }
+    }
+
+
+    //picasso only keeps a weak reference to targets, the scheduler holding the request keeps it alive
+    private class FetchRequest extends Request implements Target {
+        private final Picasso mPicasso;
+
+        FetchRequest(Context context, Priority priority, String url) {
+            super(context, priority, url, null);
+            mPicasso = ImageLoader.get(context);
+        }
+
+        @Override
+        void start() {
+            mPicasso.load(mUrl).into(this);
+        }
+
+        @Override
+        void cancel() {
+            mPicasso.cancelRequest(this);
+        }
+
+        @Override
+        public void onBitmapLoaded(Bitmap bitmap, Picasso.LoadedFrom from) {
+            finish(this);
+        }
+
+        @Override
+        public void onBitmapFailed(Drawable errorDrawable) {
+            finish(this);
+        }
+
+        @Override
+        public void onPrepareLoad(Drawable placeHolderDrawable) {
+        }
+    }
+
+
+    //a started task runs to the end, and keeps its slot until then even if it's cancelled
+    private class TaskRequest extends Request {
+        private final Runnable mTask;
+
+        TaskRequest(Object owner, Priority priority, String url, Object key, Runnable task) {
+            super(owner, priority, url, key);
+            mTask = task;
+        }
+
+        @Override
+        void start() {
+            mTaskExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        mTask.run();
+                    } finally {
+                        mHandler.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                finish(TaskRequest.this);
+                            }
+                        });
+                    }
+                }
+            });
+        }
+
+        @Override
+        void cancel() {
+        }
+
+        @Override
+        boolean stopsWhenCancelled() {
+            return false;
+        }
+    }
+}
@@ -1,25 +1,43 @@
 package com.peterponterio.flickrbrowser;
 
+import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.os.Bundle;
 import android.preference.PreferenceManager;
-import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.GridLayoutManager;
 import android.support.v7.widget.RecyclerView;
+import android.support.v7.widget.StaggeredGridLayoutManager;
+import android.util.DisplayMetrics;
 import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
 import android.widget.Toast;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.List;
 
 public class MainActivity extends BaseActivity implements GetFlickrJsonData.OnDataAvailable,
-        RecyclerItemClickListener.OnRecyclerClickListener
+        RecyclerItemClickListener.OnRecyclerClickListener, FeedSnapshot.OnSnapshotRestored
 {
     private static final String TAG = "MainActivity";
+    private static final String SNAPSHOT_FILE = "feed_snapshot.bin";
+
+    //the parts of a row that aren't the thumbnail, for guessing how many rows fit on the screen
+    private static final int ROW_PADDING_DP = 16;
+    private static final int CELL_TITLE_HEIGHT_DP = 52; //padding, margin and two lines of title
     private FlickrRecyclerViewAdapter mFlickrRecyclerViewAdapter;
+    private RecyclerView mRecyclerView;
+    private FrameMetricsMonitor mFrameMonitor;
+    private ImagePrefetcher mImagePrefetcher;
+    private RecyclerView.RecycledViewPool mRecycledViewPool;
+    private RowPreinflater mRowPreinflater;
+
+    //the download in progress, and how many of its photos have already been streamed to the adapter
+    private GetFlickrJsonData mGetFlickrJsonData = null;
+    private boolean mImagesCancelled = false;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -31,8 +49,25 @@ public class MainActivity extends BaseActivity implements GetFlickrJsonData.OnDa
         activateToolbar(false);
 
         
+        //start listening for memory pressure before anything starts filling up the caches
+        MemoryBudget.getInstance().install(this);
+
+        //in debug builds, time every message on the main thread so we can find out what's behind the
+        //freezes, and have strict mode complain about disk and network access on the main thread
+        MainThreadWatchdog.getInstance().install(BuildConfig.DEBUG);
+
         RecyclerView recyclerView = (RecyclerView) findViewById(R.id.recycler_view);
-        recyclerView.setLayoutManager(new LinearLayoutManager(this));
+        mFrameMonitor = FrameMetricsMonitor.getInstance(this);
+        mFrameMonitor.attach(recyclerView);
+        mRecyclerView = recyclerView;
+
+        /*
+            the recyclerView gets a pool that we own rather than its default one, so that it survives the
+            layout manager being swapped when the layout mode changes and rows of both types can be kept
+            around for reuse
+         */
+        mRecycledViewPool = new RecyclerView.RecycledViewPool();
+        recyclerView.setRecycledViewPool(mRecycledViewPool);
 
         //creates an instance of our recycler item click listener class and add it as a touch listener
         //to the recyclerView
@@ -43,16 +78,163 @@ public class MainActivity extends BaseActivity implements GetFlickrJsonData.OnDa
 
         mFlickrRecyclerViewAdapter = new FlickrRecyclerViewAdapter(this, new ArrayList<Photo>());
         recyclerView.setAdapter(mFlickrRecyclerViewAdapter);
-        
+
+        //download the thumbnails just below the screen before they're scrolled into view
+        mImagePrefetcher = new ImagePrefetcher(this, mFlickrRecyclerViewAdapter);
+        recyclerView.addOnScrollListener(mImagePrefetcher);
+
+        //inflates a screenful of rows in the background while the feed downloads, so the first photos only
+        //need binding. applyLayoutMode starts it off for whichever kind of row the layout uses
+        mRowPreinflater = new RowPreinflater(recyclerView, mFlickrRecyclerViewAdapter, mRecycledViewPool);
+
+        SharedPreferences sharedPreferences = PreferenceManager.getDefaultSharedPreferences(getApplicationContext());
+        applyLayoutMode(sharedPreferences.getInt(LAYOUT_MODE, FlickrRecyclerViewAdapter.LAYOUT_LIST));
+
+        //show the photos from last time while the new feed downloads
+        FeedSnapshot.restoreAsync(new File(getFilesDir(), SNAPSHOT_FILE), this);
+
 
         Log.d(TAG, "onCreate: ends");
     }
 
 
+    /*
+        switches the recyclerView between the single column list, the grid and the staggered grid.
+        The adapter needs to know the mode too because grid cells use a different layout to list rows
+     */
+    private void applyLayoutMode(int layoutMode) {
+        Log.d(TAG, "applyLayoutMode: mode is " + layoutMode);
+        int columns = getGridColumnCount();
+
+        mRecyclerView.setLayoutManager(createLayoutManager(layoutMode, columns));
+        mFlickrRecyclerViewAdapter.setLayoutMode(layoutMode);
+
+        //keep enough spare views around to fill a whole screen of the current layout
+        int rowsPerScreen = getRowsPerScreen();
+        mRecycledViewPool.setMaxRecycledViews(FlickrRecyclerViewAdapter.VIEW_TYPE_ROW,
+                (layoutMode == FlickrRecyclerViewAdapter.LAYOUT_LIST) ? rowsPerScreen : 0);
+        mRecycledViewPool.setMaxRecycledViews(FlickrRecyclerViewAdapter.VIEW_TYPE_CELL,
+                (layoutMode == FlickrRecyclerViewAdapter.LAYOUT_LIST) ? 0 : rowsPerScreen);
+
+        //the pool only had rows for the old layout, so fill it up with the new kind in the background
+        mRowPreinflater.preinflate(rowsPerScreen);
+    }
+
+
+    /*
+        roughly how many photos fit on the screen at once in the current layout. Until we know the real
+        shapes of the photos, a list row's thumbnail is a third of the screen wide and a cell's is a
+        column wide, and both are 4:3 except the square grid cells. One more row is added for the one
+        that's partly on screen
+     */
+    private int getRowsPerScreen() {
+        DisplayMetrics metrics = getResources().getDisplayMetrics();
+        int layoutMode = mFlickrRecyclerViewAdapter.getLayoutMode();
+        int viewportHeight = (mRecyclerView.getHeight() > 0) ? mRecyclerView.getHeight() : metrics.heightPixels;
+
+        float rowHeight;
+        int columns;
+        if(layoutMode == FlickrRecyclerViewAdapter.LAYOUT_LIST) {
+            columns = 1;
+            rowHeight = metrics.widthPixels / 3f * AspectRatioImageView.DEFAULT_ASPECT_RATIO + ROW_PADDING_DP * metrics.density;
+        } else {
+            columns = getGridColumnCount();
+            float aspectRatio = (layoutMode == FlickrRecyclerViewAdapter.LAYOUT_GRID) ? 1f : AspectRatioImageView.DEFAULT_ASPECT_RATIO;
+            rowHeight = metrics.widthPixels / (float) columns * aspectRatio + CELL_TITLE_HEIGHT_DP * metrics.density;
+        }
+        return ((int) Math.ceil(viewportHeight / rowHeight) + 1) * columns;
+    }
+
+
+    //as many columns as will fit on the screen, but always at least 2
+    private int getGridColumnCount() {
+        int screenWidth = getResources().getDisplayMetrics().widthPixels;
+        int columnWidth = getResources().getDimensionPixelSize(R.dimen.grid_column_width);
+        return Math.max(2, screenWidth / columnWidth);
+    }
+
+
+    /*
+        a list is laid out by a grid with a single column, so that it and the grid can share one layout
+        manager class. Each class is subclassed once so the frame monitor can see how long every layout
+        and scroll pass takes
+     */
+    private RecyclerView.LayoutManager createLayoutManager(int layoutMode, int columns) {
+        if(layoutMode == FlickrRecyclerViewAdapter.LAYOUT_STAGGERED) {
+            return new TimedStaggeredGridLayoutManager(mFrameMonitor, columns);
+        }
+        return new TimedGridLayoutManager(this, mFrameMonitor,
+                (layoutMode == FlickrRecyclerViewAdapter.LAYOUT_GRID) ? columns : 1);
+    }
+
+
+    private static class TimedGridLayoutManager extends GridLayoutManager {
+        private final FrameMetricsMonitor mMonitor;
+
+        TimedGridLayoutManager(Context context, FrameMetricsMonitor monitor, int columns) {
+            super(context, columns);
+            mMonitor = monitor;
+        }
+
+        @Override
+        public void onLayoutChildren(RecyclerView.Recycler recycler, RecyclerView.State state) {
+            mMonitor.beginPhase(FrameMetricsMonitor.Phase.LAYOUT);
+            super.onLayoutChildren(recycler, state);
+            mMonitor.endPhase(FrameMetricsMonitor.Phase.LAYOUT);
+        }
+
+        @Override
+        public int scrollVerticallyBy(int dy, RecyclerView.Recycler recycler, RecyclerView.State state) {
+            mMonitor.beginPhase(FrameMetricsMonitor.Phase.LAYOUT);
+            int scrolled = super.scrollVerticallyBy(dy, recycler, state);
+            mMonitor.endPhase(FrameMetricsMonitor.Phase.LAYOUT);
+            return scrolled;
+        }
+    }
+
+
+    private static class TimedStaggeredGridLayoutManager extends StaggeredGridLayoutManager {
+        private final FrameMetricsMonitor mMonitor;
+
+        TimedStaggeredGridLayoutManager(FrameMetricsMonitor monitor, int columns) {
+            super(columns, StaggeredGridLayoutManager.VERTICAL);
+            mMonitor = monitor;
+        }
+
+        @Override
+        public void onLayoutChildren(RecyclerView.Recycler recycler, RecyclerView.State state) {
+            mMonitor.beginPhase(FrameMetricsMonitor.Phase.LAYOUT);
+            super.onLayoutChildren(recycler, state);
+            mMonitor.endPhase(FrameMetricsMonitor.Phase.LAYOUT);
+        }
+
+        @Override
+        public int scrollVerticallyBy(int dy, RecyclerView.Recycler recycler, RecyclerView.State state) {
+            mMonitor.beginPhase(FrameMetricsMonitor.Phase.LAYOUT);
+            int scrolled = super.scrollVerticallyBy(dy, recycler, state);
+            mMonitor.endPhase(FrameMetricsMonitor.Phase.LAYOUT);
+            return scrolled;
+        }
+    }
+
+
+    @Override
+    protected void onStart() {
+        super.onStart();
+        //rows whose thumbnails were cancelled when we stopped need binding again to start them off
+        if(mImagesCancelled) {
+            mFlickrRecyclerViewAdapter.notifyDataSetChanged();
+            mImagesCancelled = false;
+        }
+    }
+
+
     @Override
     protected void onResume() {
         Log.d(TAG, "onResume starts");
         super.onResume();
+        MemoryBudget.getInstance().startHeapMonitor();
+        MainThreadWatchdog.getInstance().start();
 
 
         /*
@@ -68,13 +250,56 @@ public class MainActivity extends BaseActivity implements GetFlickrJsonData.OnDa
 
         //make sure queryResult string isnt empty before attempting to download and parse the data
         if(queryResult.length() > 0){
-            GetFlickrJsonData getFlickrJsonData = new GetFlickrJsonData(this, "https://api.flickr.com/services/feeds/photos_public.gne", "en-us", true);
-            getFlickrJsonData.execute(queryResult);
+            //an older download could still be running, we don't want its photos mixed in with the new ones
+            if(mGetFlickrJsonData != null) {
+                mGetFlickrJsonData.cancel(true);
+            }
+
+            GetFlickrJsonData getFlickrJsonData = new GetFlickrJsonData(this, FLICKR_FEED_URL, "en-us", true);
+            getFlickrJsonData.setStreaming(getRowsPerScreen());
+            getFlickrJsonData.executeOnPipeline(queryResult);
+            mGetFlickrJsonData = getFlickrJsonData;
         }
 
         Log.d(TAG, "onResume ends");
     }
 
+    @Override
+    protected void onPause() {
+        super.onPause();
+        MemoryBudget.getInstance().stopHeapMonitor();
+        MainThreadWatchdog.getInstance().stop();
+
+        //dump the scroll smoothness numbers collected so far so they can be compared between builds
+        mFrameMonitor.logReport();
+        FeedPipeline.getInstance().logReport();
+        MainThreadWatchdog.getInstance().logReport();
+        ImageScheduler.getInstance().logReport();
+        TitleLayoutCache.logReport();
+        DiskImageStore.flushAsync(this);
+
+        //save the feed again so the previews worked out while it was on screen are kept, but only if
+        //there are any, otherwise the snapshot on disk is already up to date
+        List<Photo> photos = mFlickrRecyclerViewAdapter.getPhotos();
+        if(photos.size() > 0 && PhotoPreview.takeLearnedSinceSave()) {
+            FeedSnapshot.saveAsync(new File(getFilesDir(), SNAPSHOT_FILE), photos);
+        }
+    }
+
+    //nobody can see the thumbnails while we're stopped, so they shouldn't be using the network
+    @Override
+    protected void onStop() {
+        mImagesCancelled = ImageScheduler.getInstance().cancelAll(this) > 0;
+        super.onStop();
+    }
+
+    @Override
+    protected void onDestroy() {
+        mRowPreinflater.cancel();
+        mFrameMonitor.detach(mRecyclerView);
+        super.onDestroy();
+    }
+
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         // Inflate the menu; this adds items to the action bar if it is present.
@@ -94,6 +319,16 @@ public class MainActivity extends BaseActivity implements GetFlickrJsonData.OnDa
         if (id == R.id.action_settings) {
             return true;
         }
+        /*
+            cycle through list, grid and staggered grid, and remember the choice for next time
+         */
+        if(id == R.id.action_layout) {
+            int layoutMode = (mFlickrRecyclerViewAdapter.getLayoutMode() + 1) % 3;
+            SharedPreferences sharedPreferences = PreferenceManager.getDefaultSharedPreferences(getApplicationContext());
+            sharedPreferences.edit().putInt(LAYOUT_MODE, layoutMode).apply();
+            applyLayoutMode(layoutMode);
+            return true;
+        }
         /*
             launch the search activity, starts a new activity using an intent
          */
@@ -110,17 +345,59 @@ public class MainActivity extends BaseActivity implements GetFlickrJsonData.OnDa
     @Override
     public void onDataAvailable(List<Photo> data, DownloadStatus status) {
         Log.d(TAG, "onDataAvailable: starts");
+        MainThreadWatchdog.getInstance().enter(MainThreadWatchdog.Section.DATA_AVAILABLE);
+        boolean everyPhotoStreamed = mGetFlickrJsonData != null && mGetFlickrJsonData.isEveryPhotoStreamed();
+        mGetFlickrJsonData = null;
         if(status == DownloadStatus.OK) {
-            mFlickrRecyclerViewAdapter.loadNewData(data);
+            //if every photo has already been streamed in there's nothing left to do. An empty feed never
+            //streams anything, so it still gets here and replaces the old photos with the "no photos" row
+            if(!everyPhotoStreamed) {
+                mFlickrRecyclerViewAdapter.loadNewData(data);
+                mImagePrefetcher.reset();
+            }
+
+            //remember this feed so it can be shown straight away next time the app starts
+            if(data != null && data.size() > 0) {
+                FeedSnapshot.saveAsync(new File(getFilesDir(), SNAPSHOT_FILE), data);
+            }
         } else {
             //download or processing failed
             Log.d(TAG, "onDataAvailable failed with status " + status);
         }
+        MainThreadWatchdog.getInstance().exit(MainThreadWatchdog.Section.DATA_AVAILABLE);
 
         Log.d(TAG, "onDataAvailable: ends");
     }
 
 
+    @Override
+    public void onDataChunkAvailable(List<Photo> chunk, int start) {
+        Log.d(TAG, "onDataChunkAvailable: " + chunk.size() + " photos from " + start);
+        MainThreadWatchdog.getInstance().enter(MainThreadWatchdog.Section.DATA_CHUNK);
+
+        //the first chunk replaces whatever was showing, the rest are added to the end of it
+        if(start == 0) {
+            mFlickrRecyclerViewAdapter.loadNewData(new ArrayList<>(chunk));
+            mImagePrefetcher.reset();
+        } else {
+            mFlickrRecyclerViewAdapter.appendData(chunk);
+        }
+        MainThreadWatchdog.getInstance().exit(MainThreadWatchdog.Section.DATA_CHUNK);
+    }
+
+
+    @Override
+    public void onSnapshotRestored(List<Photo> photos) {
+        Log.d(TAG, "onSnapshotRestored: " + photos.size() + " photos");
+
+        //the new feed might have beaten the snapshot here, in which case it's already out of date
+        if(mFlickrRecyclerViewAdapter.getPhoto(0) == null) {
+            mFlickrRecyclerViewAdapter.loadNewData(photos);
+            mImagePrefetcher.reset();
+        }
+    }
+
+
     @Override
     public void onItemClick(View view, int position) {
         Log.d(TAG, "onItemClick: starts");
@@ -146,9 +423,14 @@ public class MainActivity extends BaseActivity implements GetFlickrJsonData.OnDa
             getPhoto method of the adapter and telling it the position of the photo we want. The position
             parameter passed to this onItemLongClick comes from the recyclerView in which its confirming
             the position after we tapped the image
+
+            We also pass the position and the id of the list in PhotoListHolder, so the detail screen can
+            swipe between photos without the whole feed going in the intent
          */
         Intent intent = new Intent(this, PhotoDetailActivity.class);
         intent.putExtra(PHOTO_TRANSFER, mFlickrRecyclerViewAdapter.getPhoto(position));
+        intent.putExtra(PHOTO_LIST_ID, PhotoListHolder.put(mFlickrRecyclerViewAdapter.getPhotos()));
+        intent.putExtra(PHOTO_POSITION, position);
         startActivity(intent);
     }
 }
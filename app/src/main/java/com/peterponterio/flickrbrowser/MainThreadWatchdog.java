@@ -0,0 +1,329 @@
+package com.peterponterio.flickrbrowser;
+
+import android.os.Looper;
+import android.os.StrictMode;
+import android.util.Log;
+import android.util.Printer;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+    Finds out what's freezing the main thread.
+
+    The main looper prints a line before and after it handles each message, so by giving it our own
+    Printer we know when every message starts and how long it took. That's the main thread's message
+    latency, and anything longer than a frame is counted as slow.
+
+    While a message is running a watchdog thread keeps an eye on it. Once it's been running longer than
+    STALL_THRESHOLD_MILLIS, the watchdog starts taking samples of the main thread's stack every
+    SAMPLE_INTERVAL_MILLIS until it finishes. After that it logs the stall with how long it lasted, the
+    stack that came up most often, and who to blame.
+
+    To make blaming easier, our main thread callbacks mark themselves with enter() and exit(). A stall
+    is charged to the innermost section that was running when the samples were taken. If no section
+    was running, it's charged to the first of our own methods on the stack.
+
+    The looper builds the strings it prints for every message whether we use them or not, so this is all
+    only switched on in debug builds. In release builds install() and start() do nothing. In debug builds
+    install() also turns on StrictMode, which logs any disk or network access on the main thread even when
+    it's too quick to be a stall.
+
+    The looper only has room for one Printer and doesn't let us see the one it has, so ours replaces any
+    other. Nothing else in the app sets one, and in release builds we leave the looper alone.
+ */
+class MainThreadWatchdog implements Printer {
+    private static final String TAG = "MainThreadWatchdog";
+
+    private static final long STALL_THRESHOLD_MILLIS = 250;
+    private static final long SAMPLE_INTERVAL_MILLIS = 50;
+    private static final int MAX_SAMPLES = 20;
+    private static final int MAX_SECTION_DEPTH = 16;
+    private static final int MAX_LOGGED_FRAMES = 15;
+    private static final long SLOW_MESSAGE_NANOS = 16 * 1000000L;
+    private static final String APP_PACKAGE = "com.peterponterio.flickrbrowser";
+
+    //the main thread callbacks that mark themselves, so stalls can be charged to them
+    enum Section {
+        DATA_AVAILABLE,
+        DATA_CHUNK,
+        LOAD_NEW_DATA,
+        BIND,
+        TOUCH
+    }
+
+    private static MainThreadWatchdog sInstance = null;
+
+    private boolean mInstalled = false;
+    private boolean mHooked = false;
+    private Thread mWatchdogThread = null;
+    private volatile boolean mRunning = false;
+
+    //the message that's running now, written by the main thread and read by the watchdog
+    private volatile long mMessageStartNanos = 0; //0 while the looper is idle
+    private volatile int mMessageNumber = 0;
+
+    //the section stack. Only the main thread writes it, the watchdog reads it without locking which is
+    //good enough for working out who to blame
+    private final Section[] mSections = new Section[MAX_SECTION_DEPTH];
+    private volatile int mSectionDepth = 0;
+
+    //message stats, only touched on the main thread
+    private long mMessageCount = 0;
+    private long mSlowMessageCount = 0;
+    private long mWorstMessageNanos = 0;
+
+    //stall stats, only touched on the watchdog thread apart from getReport
+    private int mStallCount = 0;
+    private long mWorstStallMillis = 0;
+    private final Map<String, Integer> mStallsByCulprit = new HashMap<>();
+
+    //the stall the watchdog is sampling at the moment, -1 if there isn't one
+    private int mStallMessageNumber = -1;
+    private long mStallStartNanos = 0;
+    private final List<StackTraceElement[]> mSamples = new ArrayList<>();
+    private final List<Section> mSampleSections = new ArrayList<>();
+
+
+    static synchronized MainThreadWatchdog getInstance() {
+        if(sInstance == null) {
+            sInstance = new MainThreadWatchdog();
+        }
+        return sInstance;
+    }
+
+    private MainThreadWatchdog() {
+    }
+
+
+    //hooks into the main looper, but only if debug is true. Pass BuildConfig.DEBUG
+    void install(boolean debug) {
+        if(mInstalled) {
+            return;
+        }
+        mInstalled = true;
+        if(!debug) {
+            Log.d(TAG, "install: release build, not watching the main thread");
+            return;
+        }
+        mHooked = true;
+        Looper.getMainLooper().setMessageLogging(this);
+
+        Log.d(TAG, "install: turning on strict mode");
+        StrictMode.setThreadPolicy(new StrictMode.ThreadPolicy.Builder()
+                .detectDiskReads()
+                .detectDiskWrites()
+                .detectNetwork()
+                .penaltyLog()
+                .build());
+        StrictMode.setVmPolicy(new StrictMode.VmPolicy.Builder()
+                .detectLeakedClosableObjects()
+                .detectLeakedSqlLiteObjects()
+                .penaltyLog()
+                .build());
+    }
+
+
+    //the watchdog only needs to run while we're on screen, that's when a stall is a freeze
+    void start() {
+        if(mRunning || !mHooked) {
+            return;
+        }
+        mRunning = true;
+        mWatchdogThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                watch();
+            }
+        }, TAG);
+        mWatchdogThread.setDaemon(true);
+        mWatchdogThread.start();
+    }
+
+    void stop() {
+        mRunning = false;
+        if(mWatchdogThread != null) {
+            mWatchdogThread.interrupt();
+            mWatchdogThread = null;
+        }
+    }
+
+
+    //called on the main thread when one of our callbacks starts
+    void enter(Section section) {
+        int depth = mSectionDepth;
+        if(depth < MAX_SECTION_DEPTH) {
+            mSections[depth] = section;
+        }
+        mSectionDepth = depth + 1;
+    }
+
+    void exit(Section section) {
+        if(mSectionDepth > 0) {
+            mSectionDepth--;
+        }
+    }
+
+
+    /*
+        the looper calls this with ">>>>> Dispatching to ..." before each message and
+        "<<<<< Finished to ..." after it
+     */
+    @Override
+    public void println(String x) {
+        if(x.charAt(0) == '>') {
+            mMessageNumber++;
+            mMessageStartNanos = System.nanoTime();
+        } else if(x.charAt(0) == '<') {
+            long start = mMessageStartNanos;
+            mMessageStartNanos = 0;
+            if(start == 0) {
+                return;
+            }
+            long duration = System.nanoTime() - start;
+            mMessageCount++;
+            if(duration > SLOW_MESSAGE_NANOS) {
+                mSlowMessageCount++;
+            }
+            mWorstMessageNanos = Math.max(mWorstMessageNanos, duration);
+        }
+    }
+
+
+    private void watch() {
+        Thread mainThread = Looper.getMainLooper().getThread();
+        while(mRunning) {
+            try {
+                Thread.sleep(SAMPLE_INTERVAL_MILLIS);
+            } catch(InterruptedException e) {
+                break;
+            }
+
+            int messageNumber = mMessageNumber;
+            long start = mMessageStartNanos;
+            boolean running = start != 0;
+
+            //the message we were sampling has finished
+            if(mStallMessageNumber != -1 && (!running || messageNumber != mStallMessageNumber)) {
+                finishStall();
+            }
+
+            if(running && (System.nanoTime() - start) / 1000000 >= STALL_THRESHOLD_MILLIS) {
+                if(mStallMessageNumber == -1) {
+                    mStallMessageNumber = messageNumber;
+                    mStallStartNanos = start;
+                }
+                if(mSamples.size() < MAX_SAMPLES) {
+                    int depth = Math.min(mSectionDepth, MAX_SECTION_DEPTH);
+                    mSampleSections.add(depth > 0 ? mSections[depth - 1] : null);
+                    mSamples.add(mainThread.getStackTrace());
+                }
+            }
+        }
+        if(mStallMessageNumber != -1) {
+            finishStall();
+        }
+    }
+
+
+    private void finishStall() {
+        long durationMillis = (System.nanoTime() - mStallStartNanos) / 1000000;
+        String culprit = findCulprit();
+
+        synchronized(this) {
+            mStallCount++;
+            mWorstStallMillis = Math.max(mWorstStallMillis, durationMillis);
+            Integer count = mStallsByCulprit.get(culprit);
+            mStallsByCulprit.put(culprit, (count == null) ? 1 : count + 1);
+        }
+
+        StringBuilder message = new StringBuilder();
+        message.append("main thread stalled for about ").append(durationMillis).append("ms in ").append(culprit)
+                .append(" (").append(mSamples.size()).append(" samples)");
+        StackTraceElement[] stack = findMostCommonStack();
+        if(stack != null) {
+            for(int i = 0; i < stack.length && i < MAX_LOGGED_FRAMES; i++) {
+                message.append("\n    at ").append(stack[i]);
+            }
+        }
+        Log.w(TAG, message.toString());
+
+        mStallMessageNumber = -1;
+        mSamples.clear();
+        mSampleSections.clear();
+    }
+
+
+    //the section seen most often, or failing that the first of our own frames on the stack
+    private String findCulprit() {
+        Map<Section, Integer> counts = new HashMap<>();
+        Section culprit = null;
+        int best = 0;
+        for(Section section : mSampleSections) {
+            if(section == null) {
+                continue;
+            }
+            Integer count = counts.get(section);
+            count = (count == null) ? 1 : count + 1;
+            counts.put(section, count);
+            if(count > best) {
+                best = count;
+                culprit = section;
+            }
+        }
+        if(culprit != null) {
+            return culprit.name();
+        }
+
+        StackTraceElement[] stack = findMostCommonStack();
+        if(stack != null) {
+            for(StackTraceElement frame : stack) {
+                if(frame.getClassName().startsWith(APP_PACKAGE)) {
+                    return frame.getClassName().substring(APP_PACKAGE.length() + 1) + "." + frame.getMethodName();
+                }
+            }
+        }
+        return "unknown";
+    }
+
+
+    //samples are compared by their top frame, which is where the time was actually going
+    private StackTraceElement[] findMostCommonStack() {
+        Map<StackTraceElement, Integer> counts = new HashMap<>();
+        StackTraceElement[] mostCommon = null;
+        int best = 0;
+        for(StackTraceElement[] sample : mSamples) {
+            if(sample.length == 0) {
+                continue;
+            }
+            Integer count = counts.get(sample[0]);
+            count = (count == null) ? 1 : count + 1;
+            counts.put(sample[0], count);
+            if(count > best) {
+                best = count;
+                mostCommon = sample;
+            }
+        }
+        return mostCommon;
+    }
+
+
+    synchronized String getReport() {
+        StringBuilder report = new StringBuilder();
+        report.append("messages=").append(mMessageCount)
+                .append(" slow=").append(mSlowMessageCount)
+                .append(" worst=").append(mWorstMessageNanos / 1000000).append("ms")
+                .append(" stalls=").append(mStallCount)
+                .append(" worstStall=").append(mWorstStallMillis).append("ms");
+        for(Map.Entry<String, Integer> entry : mStallsByCulprit.entrySet()) {
+            report.append(" | ").append(entry.getKey()).append("=").append(entry.getValue());
+        }
+        return report.toString();
+    }
+
+    void logReport() {
+        Log.d(TAG, "logReport: " + getReport());
+    }
+}
@@ -0,0 +1,300 @@
+package com.peterponterio.flickrbrowser;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.v4.util.LruCache;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+    One place that knows about everything in the app that holds on to memory it could give back.
+
+    Caches register themselves as a MemoryConsumer. When the system tells us memory is getting tight
+    (onTrimMemory/onLowMemory), or our own heap gets close to its limit, every consumer is asked to
+    shrink. The harder the pressure, the more they're asked to give up:
+
+        MODERATE - keep half
+        SEVERE   - keep a quarter
+        CRITICAL - throw everything away
+
+    Caches aren't resized permanently, they just evict entries and are free to fill up again once the
+    pressure has gone. Other classes can check getCurrentTier before doing optional work such as
+    prefetching.
+ */
+class MemoryBudget implements ComponentCallbacks2 {
+    private static final String TAG = "MemoryBudget";
+
+    static final int TIER_NONE = 0;
+    static final int TIER_MODERATE = 1;
+    static final int TIER_SEVERE = 2;
+    static final int TIER_CRITICAL = 3;
+
+    //fraction of the heap in use before we start trimming our own caches
+    private static final float HEAP_MODERATE_THRESHOLD = 0.70f;
+    private static final float HEAP_SEVERE_THRESHOLD = 0.85f;
+    private static final long HEAP_CHECK_INTERVAL_MILLIS = 5000;
+
+    /*
+        anything that holds memory we can take back. trimToFraction should evict until the consumer holds
+        no more than the given fraction of what it currently holds, and return the number of bytes freed
+     */
+    interface MemoryConsumer {
+        String getName();
+        long getSizeBytes();
+        long trimToFraction(float fraction);
+    }
+
+    /*
+        lets a cache that counts entries rather than bytes register as a consumer. We can't measure the
+        entries exactly, so the size reported is the entry count times a rough size per entry
+     */
+    static class LruCacheConsumer implements MemoryConsumer {
+        private final String mName;
+        private final LruCache<?, ?> mCache;
+        private final int mBytesPerEntry;
+
+        LruCacheConsumer(String name, LruCache<?, ?> cache, int bytesPerEntry) {
+            mName = name;
+            mCache = cache;
+            mBytesPerEntry = bytesPerEntry;
+        }
+
+        @Override
+        public String getName() {
+            return mName;
+        }
+
+        @Override
+        public long getSizeBytes() {
+            return (long) mCache.size() * mBytesPerEntry;
+        }
+
+        @Override
+        public long trimToFraction(float fraction) {
+            int before = mCache.size();
+            mCache.trimToSize((int) (before * fraction));
+            return (long) (before - mCache.size()) * mBytesPerEntry;
+        }
+    }
+
+    private static MemoryBudget sInstance = null;
+
+    private final List<MemoryConsumer> mConsumers = new ArrayList<>();
+    private final List<long[]> mConsumerStats = new ArrayList<>(); //bytes evicted, times trimmed
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private boolean mInstalled = false;
+    private boolean mHeapMonitorRunning = false;
+    private int mCurrentTier = TIER_NONE;
+
+    //the tiers the two sources last asked for, mCurrentTier is whichever is higher
+    private int mSystemTier = TIER_NONE;
+    private int mHeapTier = TIER_NONE;
+
+    private final Runnable mHeapCheck = new Runnable() {
+        @Override
+        public void run() {
+            checkHeapPressure();
+            if(mHeapMonitorRunning) {
+                mHandler.postDelayed(this, HEAP_CHECK_INTERVAL_MILLIS);
+            }
+        }
+    };
+
+
+    static synchronized MemoryBudget getInstance() {
+        if(sInstance == null) {
+            sInstance = new MemoryBudget();
+        }
+        return sInstance;
+    }
+
+    private MemoryBudget() {
+    }
+
+
+    //start listening for the system's memory callbacks. Safe to call more than once
+    synchronized void install(Context context) {
+        if(!mInstalled) {
+            Log.d(TAG, "install: registering for memory callbacks");
+            context.getApplicationContext().registerComponentCallbacks(this);
+            mInstalled = true;
+        }
+    }
+
+
+    synchronized void register(MemoryConsumer consumer) {
+        if(!mConsumers.contains(consumer)) {
+            Log.d(TAG, "register: " + consumer.getName());
+            mConsumers.add(consumer);
+            mConsumerStats.add(new long[2]);
+        }
+    }
+
+    //for consumers that don't live as long as the app, like the caches that belong to a view
+    synchronized void unregister(MemoryConsumer consumer) {
+        int index = mConsumers.indexOf(consumer);
+        if(index >= 0) {
+            Log.d(TAG, "unregister: " + consumer.getName());
+            mConsumers.remove(index);
+            mConsumerStats.remove(index);
+        }
+    }
+
+
+    synchronized int getCurrentTier() {
+        return mCurrentTier;
+    }
+
+
+    /*
+        polls the heap while the app is in the foreground, the activity turns this on and off. Most of what
+        the system tells us is about being in the background, so coming back to the foreground clears it
+     */
+    void startHeapMonitor() {
+        synchronized(this) {
+            mSystemTier = TIER_NONE;
+            mCurrentTier = mHeapTier;
+        }
+        if(!mHeapMonitorRunning) {
+            mHeapMonitorRunning = true;
+            mHandler.post(mHeapCheck);
+        }
+    }
+
+    void stopHeapMonitor() {
+        mHeapMonitorRunning = false;
+        mHandler.removeCallbacks(mHeapCheck);
+    }
+
+
+    /*
+        the system only tells us about memory pressure for the device as a whole. Our own heap can run out
+        long before that, especially with lots of bitmaps in memory, so we check it ourselves too.
+
+        Used memory includes garbage that hasn't been collected yet, so the heap can sit above a threshold
+        for a while after we've trimmed, without there being anything left for us to give back. We only
+        trim when the heap tier goes up, not every time we look, and a heap that looks fine never lowers
+        a tier the system gave us
+     */
+    void checkHeapPressure() {
+        Runtime runtime = Runtime.getRuntime();
+        long used = runtime.totalMemory() - runtime.freeMemory();
+        float usage = (float) used / runtime.maxMemory();
+
+        int tier = TIER_NONE;
+        if(usage >= HEAP_SEVERE_THRESHOLD) {
+            tier = TIER_SEVERE;
+        } else if(usage >= HEAP_MODERATE_THRESHOLD) {
+            tier = TIER_MODERATE;
+        }
+
+        synchronized(this) {
+            int previous = mHeapTier;
+            mHeapTier = tier;
+            mCurrentTier = Math.max(mSystemTier, mHeapTier);
+            if(tier > previous) {
+                Log.d(TAG, "checkHeapPressure: heap usage is " + usage);
+                trimConsumers(tier);
+            }
+        }
+    }
+
+
+    //for pressure the system reported
+    synchronized void trim(int tier) {
+        mSystemTier = tier;
+        mCurrentTier = Math.max(mSystemTier, mHeapTier);
+        trimConsumers(tier);
+    }
+
+
+    private void trimConsumers(int tier) {
+        if(tier == TIER_NONE) {
+            return;
+        }
+
+        float fraction;
+        switch(tier) {
+            case TIER_MODERATE:
+                fraction = 0.5f;
+                break;
+            case TIER_SEVERE:
+                fraction = 0.25f;
+                break;
+            default:
+                fraction = 0f;
+                break;
+        }
+
+        long totalFreed = 0;
+        for(int i = 0; i < mConsumers.size(); i++) {
+            long freed = mConsumers.get(i).trimToFraction(fraction);
+            long[] stats = mConsumerStats.get(i);
+            stats[0] += freed;
+            stats[1]++;
+            totalFreed += freed;
+        }
+        Log.d(TAG, "trimConsumers: tier " + tier + " freed " + totalFreed + " bytes");
+    }
+
+
+    @Override
+    public void onTrimMemory(int level) {
+        Log.d(TAG, "onTrimMemory: level " + level);
+
+        //the levels at or above TRIM_MEMORY_BACKGROUND are sent once we're in the background and the
+        //system is deciding which processes to kill, the others are sent while we're still running
+        if(level >= TRIM_MEMORY_COMPLETE) {
+            trim(TIER_CRITICAL);
+        } else if(level >= TRIM_MEMORY_MODERATE) {
+            trim(TIER_SEVERE);
+        } else if(level >= TRIM_MEMORY_BACKGROUND) {
+            trim(TIER_MODERATE);
+        } else if(level >= TRIM_MEMORY_UI_HIDDEN) {
+            //nothing is on screen any more, so there's no point keeping all the thumbnails around
+            trim(TIER_MODERATE);
+        } else if(level >= TRIM_MEMORY_RUNNING_CRITICAL) {
+            trim(TIER_CRITICAL);
+        } else if(level >= TRIM_MEMORY_RUNNING_LOW) {
+            trim(TIER_SEVERE);
+        } else if(level >= TRIM_MEMORY_RUNNING_MODERATE) {
+            trim(TIER_MODERATE);
+        }
+        logReport();
+    }
+
+    @Override
+    public void onLowMemory() {
+        Log.d(TAG, "onLowMemory: starts");
+        trim(TIER_CRITICAL);
+        logReport();
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
+    }
+
+
+    synchronized String getReport() {
+        StringBuilder report = new StringBuilder();
+        report.append("tier=").append(mCurrentTier);
+        for(int i = 0; i < mConsumers.size(); i++) {
+            MemoryConsumer consumer = mConsumers.get(i);
+            long[] stats = mConsumerStats.get(i);
+            report.append(" | ").append(consumer.getName())
+                    .append(" size=").append(consumer.getSizeBytes())
+                    .append(" evicted=").append(stats[0])
+                    .append(" trims=").append(stats[1]);
+        }
+        return report.toString();
+    }
+
+    void logReport() {
+        Log.d(TAG, "logReport: " + getReport());
+    }
+}
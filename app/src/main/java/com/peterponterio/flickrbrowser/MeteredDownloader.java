@@ -0,0 +1,140 @@
+package com.peterponterio.flickrbrowser;
+
+import android.content.Context;
+import android.net.Uri;
+import android.util.Log;
+
+import com.squareup.picasso.Downloader;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/*
+    The downloader picasso uses to fetch images. Images are kept on disk by the DiskImageStore, so an
+    image we've downloaded before is read straight from its file. Anything else is downloaded with an
+    HttpURLConnection into the store, and the BandwidthEstimator is told how long it took to arrive.
+
+    Images that come out of the store aren't reported, they'd make the network look far faster than it
+    really is.
+ */
+class MeteredDownloader implements Downloader {
+    private static final String TAG = "MeteredDownloader";
+
+    private static final int CONNECT_TIMEOUT_MILLIS = 15000;
+    private static final int READ_TIMEOUT_MILLIS = 20000;
+
+    private final Context mContext;
+
+    MeteredDownloader(Context context) {
+        mContext = context.getApplicationContext();
+    }
+
+
+    @Override
+    public Response load(Uri uri, boolean localCacheOnly) throws IOException {
+        //opening the store the first time reads its index, picasso always calls us in the background
+        DiskImageStore store = DiskImageStore.getInstance(mContext);
+        String url = uri.toString();
+        InputStream stored = store.open(url);
+        if(stored != null) {
+            return new Response(stored, true);
+        }
+        if(localCacheOnly) {
+            throw new IOException("Not in the disk store " + url);
+        }
+
+        return new Response(store.put(url, openStream(url)), false);
+    }
+
+
+    /*
+        opens a connection to url and returns its body, metered so the BandwidthEstimator hears about
+        it once it's been read to the end or closed. Used by the detail screen for its big images too
+     */
+    static InputStream openStream(String url) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+        connection.setReadTimeout(READ_TIMEOUT_MILLIS);
+
+        //the store does our caching now
+        connection.setUseCaches(false);
+
+        long requestStart = System.nanoTime();
+        int responseCode = connection.getResponseCode();
+        long responseStart = System.nanoTime();
+        if(responseCode >= 300) {
+            connection.disconnect();
+            throw new IOException(responseCode + " " + connection.getResponseMessage());
+        }
+
+        BandwidthEstimator.getInstance().addLatency(responseStart - requestStart);
+        Log.d(TAG, "openStream: downloading " + url);
+        return new MeteredInputStream(connection.getInputStream(), responseStart);
+    }
+
+
+    //picasso calls this when it's shut down, there's nothing of ours to release
+    public void shutdown() {
+    }
+
+
+    /*
+        counts the bytes that pass through and reports them when the stream is finished with. GetRawData
+        wraps the feed download in one too, so both kinds of download are measured the same way
+     */
+    static class MeteredInputStream extends FilterInputStream {
+        private final long mStartNanos;
+        private long mBytes = 0;
+        private boolean mReported = false;
+
+        MeteredInputStream(InputStream in, long startNanos) {
+            super(in);
+            mStartNanos = startNanos;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if(b >= 0) {
+                mBytes++;
+            } else {
+                report();
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            int read = super.read(buffer, offset, count);
+            if(read > 0) {
+                mBytes += read;
+            } else if(read < 0) {
+                report();
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long count) throws IOException {
+            long skipped = super.skip(count);
+            mBytes += skipped;
+            return skipped;
+        }
+
+        @Override
+        public void close() throws IOException {
+            report();
+            super.close();
+        }
+
+        private void report() {
+            if(!mReported) {
+                mReported = true;
+                BandwidthEstimator.getInstance().addTransfer(mBytes, System.nanoTime() - mStartNanos);
+            }
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package com.peterponterio.flickrbrowser;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.util.Log;
+
+import org.json.JSONException;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.Semaphore;
+
+/*
+    Parses the items of a big feed on every core at once.
+
+    FeedItemScanner has already found where each item starts and ends, so items can be parsed
+    independently. The range of items is split in half over and over on a fork-join pool until each piece
+    is ITEMS_PER_TASK items, and each piece writes its photos into its own part of the results array.
+    That keeps them in feed order without any sorting afterwards. Idle threads steal halves from busy
+    ones, so a slow piece doesn't hold everything up.
+
+    Splitting only pays for itself on big feeds. Below MIN_PARALLEL_ITEMS, GetFlickrJsonData parses on
+    its own thread as before. ForkJoinPool is only on API 21 and up, so callers check the version before
+    touching this class.
+
+    The FeedPipeline already runs a parse thread per spare core, so if every one of them split its feed
+    across every core too we'd have twice as many busy threads as cores. Only one feed at a time gets the
+    pool, and tryParse returns false for any other, which parses on its own thread as usual. The pool has
+    one thread per spare core, the same as the pipeline, and the thread that's waiting for it sleeps.
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+class ParallelItemParser {
+    private static final String TAG = "ParallelItemParser";
+
+    static final int MIN_PARALLEL_ITEMS = 128;
+    private static final int ITEMS_PER_TASK = 32;
+
+    //parses one item, it's called on several threads at once
+    interface ItemParser {
+        Photo parseItem(int index) throws JSONException;
+    }
+
+    private static ForkJoinPool sPool = null;
+    private static final Semaphore sPoolPermit = new Semaphore(1);
+
+    private ParallelItemParser() {
+    }
+
+
+    private static synchronized ForkJoinPool getPool() {
+        if(sPool == null) {
+            //leave a core for the main thread
+            sPool = new ForkJoinPool(Math.max(1, Runtime.getRuntime().availableProcessors() - 1));
+        }
+        return sPool;
+    }
+
+
+    /*
+        parses the items from start up to end into results[start] to results[end - 1] and returns true,
+        or returns false straight away without parsing anything if another feed is using the pool or
+        there's only one core to spare
+     */
+    static boolean tryParse(ItemParser parser, int start, int end, Photo[] results) throws JSONException {
+        ForkJoinPool pool = getPool();
+        if(pool.getParallelism() < 2 || !sPoolPermit.tryAcquire()) {
+            return false;
+        }
+        long startNanos = System.nanoTime();
+        try {
+            pool.invoke(new ParseTask(parser, start, end, results));
+        } catch(ItemParseException e) {
+            //the pool can hand back a copy of the exception from another thread, so look for the cause
+            Throwable cause = e;
+            while(cause != null && !(cause instanceof JSONException)) {
+                cause = cause.getCause();
+            }
+            throw (cause != null) ? (JSONException) cause : new JSONException(e.getMessage());
+        } finally {
+            sPoolPermit.release();
+        }
+        Log.d(TAG, "tryParse: " + (end - start) + " items on " + pool.getParallelism() + " threads in "
+                + (System.nanoTime() - startNanos) / 1000 + "us");
+        return true;
+    }
+
+
+    private static class ParseTask extends RecursiveAction {
+        private final ItemParser mParser;
+        private final int mStart;
+        private final int mEnd;
+        private final Photo[] mResults;
+
+        ParseTask(ItemParser parser, int start, int end, Photo[] results) {
+            mParser = parser;
+            mStart = start;
+            mEnd = end;
+            mResults = results;
+        }
+
+        @Override
+        protected void compute() {
+            if(mEnd - mStart <= ITEMS_PER_TASK) {
+                for(int i = mStart; i < mEnd; i++) {
+                    try {
+                        mResults[i] = mParser.parseItem(i);
+                    } catch(JSONException e) {
+                        throw new ItemParseException(e);
+                    }
+                }
+                return;
+            }
+            int middle = (mStart + mEnd) >>> 1;
+            invokeAll(new ParseTask(mParser, mStart, middle, mResults), new ParseTask(mParser, middle, mEnd, mResults));
+        }
+    }
+
+
+    //carries a JSONException out of compute(), which can't throw checked exceptions
+    private static class ItemParseException extends RuntimeException {
+        ItemParseException(JSONException cause) {
+            super(cause.getMessage(), cause);
+        }
+    }
+}
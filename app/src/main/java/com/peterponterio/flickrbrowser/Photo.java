@@ -1,5 +1,7 @@
 package com.peterponterio.flickrbrowser;
 
+import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 
 /**
@@ -15,6 +17,34 @@ class Photo implements Serializable {
      */
     private static final long serialVersionUID = 1L;
 
+    //the fields a PhotoFieldSource can be asked for
+    static final int FIELD_TITLE = 0;
+    static final int FIELD_AUTHOR = 1;
+    static final int FIELD_AUTHOR_ID = 2;
+    static final int FIELD_LINK = 3;
+    static final int FIELD_TAGS = 4;
+    static final int FIELD_IMAGE = 5;
+    static final int FIELD_COUNT = 6;
+
+    /*
+        somewhere that holds the fields of photos in some raw form, such as a saved snapshot, and can
+        turn one of them into a String when it's asked for
+     */
+    interface PhotoFieldSource {
+        String getField(int index, int field);
+    }
+
+    //a source and the index of the photo's item in it
+    private static final class SourceBinding {
+        final PhotoFieldSource mSource;
+        final int mIndex;
+
+        SourceBinding(PhotoFieldSource source, int index) {
+            mSource = source;
+            mIndex = index;
+        }
+    }
+
     private String mTitle;
     private String mAuthor;
     private String mAuthorId;
@@ -22,6 +52,20 @@ class Photo implements Serializable {
     private String mTags;
     private String mImage;
 
+    //height divided by width of the thumbnail, or 0 if we dont know it yet
+    private float mAspectRatio = 0f;
+
+    //a tiny copy of the thumbnail to show until the real one has loaded, see PhotoPreview
+    private byte[] mPreview = null;
+
+    /*
+        photos that are backed by a field source only fetch each field the first time it's used. These
+        aren't serialized, writeObject makes sure every field has been fetched before the photo is written.
+        rebind() can move the photo to another source from another thread, so the source and the index
+        are swapped together in one binding, and the getters read it once into a local
+     */
+    private transient volatile SourceBinding mBinding = null;
+
     public Photo(String title, String author, String authorId, String link, String tags, String image) {
         mTitle = title;
         mAuthor = author;
@@ -31,40 +75,125 @@ class Photo implements Serializable {
         mImage = image;
     }
 
+    //a photo whose fields are read from the source when they're needed
+    Photo(PhotoFieldSource source, int sourceIndex, float aspectRatio) {
+        mBinding = new SourceBinding(source, sourceIndex);
+        mAspectRatio = aspectRatio;
+    }
+
     String getTitle() {
+        if(mTitle == null) {
+            mTitle = fetch(FIELD_TITLE);
+        }
         return mTitle;
     }
 
     String getAuthor() {
+        if(mAuthor == null) {
+            mAuthor = fetch(FIELD_AUTHOR);
+        }
         return mAuthor;
     }
 
     String getAuthorId() {
+        if(mAuthorId == null) {
+            mAuthorId = fetch(FIELD_AUTHOR_ID);
+        }
         return mAuthorId;
     }
 
     String getLink() {
+        if(mLink == null) {
+            mLink = fetch(FIELD_LINK);
+        }
         return mLink;
     }
 
     String getTags() {
+        if(mTags == null) {
+            mTags = fetch(FIELD_TAGS);
+        }
         return mTags;
     }
 
     String getImage() {
+        if(mImage == null) {
+            mImage = fetch(FIELD_IMAGE);
+        }
         return mImage;
     }
 
+    String getField(int field) {
+        switch(field) {
+            case FIELD_TITLE:
+                return getTitle();
+            case FIELD_AUTHOR:
+                return getAuthor();
+            case FIELD_AUTHOR_ID:
+                return getAuthorId();
+            case FIELD_LINK:
+                return getLink();
+            case FIELD_TAGS:
+                return getTags();
+            case FIELD_IMAGE:
+                return getImage();
+            default:
+                throw new IllegalArgumentException("Unknown field " + field);
+        }
+    }
+
+    float getAspectRatio() {
+        return mAspectRatio;
+    }
+
+    void setAspectRatio(float aspectRatio) {
+        mAspectRatio = aspectRatio;
+    }
+
+    byte[] getPreview() {
+        return mPreview;
+    }
+
+    void setPreview(byte[] preview) {
+        mPreview = preview;
+    }
+
+
+    /*
+        points the photo at the same item in a newer feed, so it stops keeping the feed it came from alive.
+        Fields that have already been fetched are kept, the rest will be read from the new feed
+     */
+    void rebind(PhotoFieldSource source, int sourceIndex) {
+        mBinding = new SourceBinding(source, sourceIndex);
+    }
+
+
+    //reads a field from the source, or null if the photo wasn't made from one
+    private String fetch(int field) {
+        SourceBinding binding = mBinding;
+        return (binding != null) ? binding.mSource.getField(binding.mIndex, field) : null;
+    }
+
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        //the source can't go with the photo, so fetch anything that hasn't been fetched yet
+        for(int field = 0; field < FIELD_COUNT; field++) {
+            getField(field);
+        }
+        out.defaultWriteObject();
+    }
+
 
     @Override
     public String toString() {
         return "Photo{" +
-                "mTitle='" + mTitle + '\'' +
-                ", mAuthor='" + mAuthor + '\'' +
-                ", mAuthorId='" + mAuthorId + '\'' +
-                ", mLink='" + mLink + '\'' +
-                ", mTags='" + mTags + '\'' +
-                ", mImage='" + mImage + '\'' +
+                "mTitle='" + getTitle() + '\'' +
+                ", mAuthor='" + getAuthor() + '\'' +
+                ", mAuthorId='" + getAuthorId() + '\'' +
+                ", mLink='" + getLink() + '\'' +
+                ", mTags='" + getTags() + '\'' +
+                ", mImage='" + getImage() + '\'' +
+                ", mAspectRatio=" + mAspectRatio +
                 '}';
     }
 }
@@ -1,15 +1,18 @@
 package com.peterponterio.flickrbrowser;
 
 import android.content.Intent;
-import android.content.res.Resources;
 import android.os.Bundle;
-import android.widget.ImageView;
-import android.widget.TextView;
+import android.support.v4.view.ViewPager;
+
+import java.util.ArrayList;
+import java.util.List;
 
-import com.squareup.picasso.Picasso;
 
 public class PhotoDetailActivity extends BaseActivity {
 
+    private PhotoPagerAdapter mPagerAdapter;
+    private boolean mImagesCancelled = false;
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -19,58 +22,78 @@ public class PhotoDetailActivity extends BaseActivity {
 
         /*
             use the getIntent method to retrieve the intent that started this activity. To retrieve the
-            photo object, we use the getSerializableExtra method because the photo objects are serialized.
-            we cast that to a Photo to make sure we get the right type back. Using the PHOTO_TRANSFER key
-            to make sure that we retrieve the same value that was stored in main activity.
+            photo objects, we use the getSerializableExtra method because the photo objects are serialized.
+            The activity that started us leaves the list of photos it was showing in PhotoListHolder and
+            passes its id plus the position of the one that was tapped, so the user can swipe to the photos
+            either side of it. If the list has gone because the process was restarted, we fall back to the
+            single photo stored under the PHOTO_TRANSFER key.
          */
         Intent intent = getIntent();
-        Photo photo = (Photo) intent.getSerializableExtra(PHOTO_TRANSFER);
-        if(photo != null) {
-            //calling getResources
-            Resources resources = getResources();
-
-            /*
-                get a reference to each of the widgets in the layout and set their values to display
-                the fields of the photo object
-             */
+        List<Photo> photoList = getPhotoList(intent);
+        if(photoList.isEmpty()) {
+            return;
+        }
+        int position = intent.getIntExtra(PHOTO_POSITION, 0);
+        if(position < 0 || position >= photoList.size()) {
+            position = 0;
+        }
 
-            TextView photoTitle = (TextView) findViewById(R.id.photo_title);
-            /*
-                uses resources getString method to get the string with the ID photo_title_text from the
-                strings.xml resource file. the getString method will replace any place holders with the
-                actual value, which we get by retrieving the title field of our photo objects. The getString
-                method takes care of replacing the placeholders with the values that we specify.
-             */
-            photoTitle.setText(resources.getString(R.string.photo_title_text, photo.getTitle()));
+        mPagerAdapter = new PhotoPagerAdapter(this, photoList);
+        ViewPager pager = (ViewPager) findViewById(R.id.photo_pager);
 
+        /*
+            the pager keeps one page either side of the current one, so those photos are downloaded and
+            decoded before the user swipes to them. Photos one further out are downloaded to disk but not
+            decoded, which costs no memory
+         */
+        pager.setOffscreenPageLimit(1);
+        pager.setAdapter(mPagerAdapter);
+        pager.setCurrentItem(position, false);
+        pager.addOnPageChangeListener(new ViewPager.SimpleOnPageChangeListener() {
+            @Override
+            public void onPageSelected(int position) {
+                prefetchAround(position);
+            }
+        });
+        prefetchAround(position);
+    }
 
-            TextView photoTags = (TextView) findViewById(R.id.photo_tags);
-            /*
-                uses resources getString method to get the string with the ID photo_tags_text from the
-                strings.xml resource file. the getString method will replace any place holders with the
-                actual value, which we get by retrieving the tags field of our photo objects. The getString
-                method takes care of replacing the placeholders with the values that we specify.
-             */
-            photoTags.setText(resources.getString(R.string.photo_tags_text, photo.getTags()));
 
+    @Override
+    protected void onStart() {
+        super.onStart();
+        if(mImagesCancelled && mPagerAdapter != null) {
+            mPagerAdapter.reloadImages();
+        }
+        mImagesCancelled = false;
+    }
 
-            TextView photoAuthor = (TextView) findViewById(R.id.photo_author);
-            photoAuthor.setText(photo.getAuthor());
+    //nobody can see the images while we're stopped, so they shouldn't be using the network
+    @Override
+    protected void onStop() {
+        mImagesCancelled = ImageScheduler.getInstance().cancelAll(this) > 0;
+        super.onStop();
+    }
 
-            ImageView photoImage = (ImageView) findViewById(R.id.photo_image);
-            /*
-                we dont have a context stored in a field and we dont need one cause an activity is a context
-                we can just use 'this' as the context
-             */
-            Picasso.with(this).load(photo.getLink())
-                    .error(R.drawable.placeholder)
-                    .placeholder(R.drawable.placeholder)
-                    .into(photoImage);
 
+    private void prefetchAround(int position) {
+        mPagerAdapter.prefetch(position - 2);
+        mPagerAdapter.prefetch(position + 2);
+    }
 
 
+    private static List<Photo> getPhotoList(Intent intent) {
+        List<Photo> photoList = PhotoListHolder.get(intent.getIntExtra(PHOTO_LIST_ID, 0));
+        if(photoList != null) {
+            return photoList;
+        }
 
+        photoList = new ArrayList<>();
+        Photo photo = (Photo) intent.getSerializableExtra(PHOTO_TRANSFER);
+        if(photo != null) {
+            photoList.add(photo);
         }
+        return photoList;
     }
 
 }
@@ -0,0 +1,50 @@
+package com.peterponterio.flickrbrowser;
+
+import android.util.Log;
+import android.util.SparseArray;
+
+import java.util.List;
+
+/*
+    Hands the list of photos to the detail screen without putting it in the intent.
+
+    Everything in an intent is serialized, and the whole feed can be bigger than a binder transaction
+    allows, which crashes with a TransactionTooLargeException. Serializing a photo also reads every one of
+    its fields out of the feed text, on the main thread. Both activities live in the same process, so the
+    list is kept here and only its id goes in the intent.
+
+    If the process is killed while the detail screen is in the background, the list is gone when it's
+    recreated. The detail screen falls back to the single photo that's still serialized in the intent.
+ */
+class PhotoListHolder {
+    private static final String TAG = "PhotoListHolder";
+
+    //enough for a detail screen opened from each of our lists, plus one being recreated
+    private static final int MAX_LISTS = 4;
+
+    private static final SparseArray<List<Photo>> sLists = new SparseArray<>();
+    private static int sNextId = 1;
+
+    private PhotoListHolder() {
+    }
+
+
+    //keeps photos and returns the id to put in the intent. The adapters' getPhotos already hands out a copy
+    static synchronized int put(List<Photo> photos) {
+        int id = sNextId++;
+        sLists.put(id, photos);
+
+        //ids only go up, so the first key is always the oldest list
+        while(sLists.size() > MAX_LISTS) {
+            sLists.removeAt(0);
+        }
+        Log.d(TAG, "put: list " + id + " with " + photos.size() + " photos");
+        return id;
+    }
+
+
+    //the list put under id, or null if it's gone because the process was restarted
+    static synchronized List<Photo> get(int id) {
+        return sLists.get(id);
+    }
+}
@@ -0,0 +1,171 @@
+package com.peterponterio.flickrbrowser;
+
+import android.content.Context;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.support.v4.view.PagerAdapter;
+import android.util.Log;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.TextView;
+
+import com.squareup.picasso.Picasso;
+import com.squareup.picasso.Target;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+    Gives the detail screen's ViewPager one page per photo, so the user can swipe through the photos
+    they were looking at rather than going back to the list for each one.
+
+    Each page starts by showing the photo's thumbnail, which is almost always in picasso's memory cache
+    already because it was just on screen in the list, and the tiled view swaps in the full size image
+    when it's ready. The pager keeps the pages either side of the current one alive, so their full size
+    images are downloaded and decoded at screen size before the user swipes to them.
+
+    Pages that scroll out of that window are kept and reused for the next photo, rather than inflating
+    a new page every time.
+ */
+class PhotoPagerAdapter extends PagerAdapter {
+    private static final String TAG = "PhotoPagerAdapter";
+
+    private final Context mContext;
+    private final List<Photo> mPhotoList;
+    private final List<PageViewHolder> mRecycledPages = new ArrayList<>();
+    private final List<PageViewHolder> mActivePages = new ArrayList<>();
+
+    PhotoPagerAdapter(Context context, List<Photo> photoList) {
+        mContext = context;
+        mPhotoList = photoList;
+    }
+
+
+    @Override
+    public int getCount() {
+        return mPhotoList.size();
+    }
+
+    Photo getPhoto(int position) {
+        return mPhotoList.get(position);
+    }
+
+
+    @Override
+    public Object instantiateItem(ViewGroup container, int position) {
+        PageViewHolder holder;
+        if(mRecycledPages.isEmpty()) {
+            Log.d(TAG, "instantiateItem: inflating page for " + position);
+            View page = LayoutInflater.from(mContext).inflate(R.layout.photo_detail_page, container, false);
+            holder = new PageViewHolder(page);
+        } else {
+            holder = mRecycledPages.remove(mRecycledPages.size() - 1);
+            holder.page.scrollTo(0, 0);
+        }
+
+        bind(holder, mPhotoList.get(position));
+        container.addView(holder.page);
+        mActivePages.add(holder);
+        return holder;
+    }
+
+
+    @Override
+    public void destroyItem(ViewGroup container, int position, Object object) {
+        PageViewHolder holder = (PageViewHolder) object;
+        container.removeView(holder.page);
+
+        //let go of the big bitmaps now, the page might not be used again for a while
+        ImageLoader.get(mContext).cancelRequest(holder.preview);
+        holder.image.recycle();
+        mActivePages.remove(holder);
+        mRecycledPages.add(holder);
+    }
+
+
+    @Override
+    public boolean isViewFromObject(View view, Object object) {
+        return view == ((PageViewHolder) object).page;
+    }
+
+
+    private void bind(final PageViewHolder holder, Photo photo) {
+        Resources resources = mContext.getResources();
+        holder.title.setText(resources.getString(R.string.photo_title_text, photo.getTitle()));
+        holder.tags.setText(resources.getString(R.string.photo_tags_text, photo.getTags()));
+        holder.author.setText(photo.getAuthor());
+        holder.photo = photo;
+        loadImage(holder, photo);
+    }
+
+
+    private void loadImage(PageViewHolder holder, Photo photo) {
+        BandwidthEstimator bandwidthEstimator = BandwidthEstimator.getInstance();
+        holder.image.setPlaceholder(PhotoPreview.getPlaceholder(mContext, photo));
+        holder.image.setAspectRatioHint(photo.getAspectRatio());
+        holder.image.setImageUrl(bandwidthEstimator.chooseLargeUrl(photo.getLink()));
+
+        //if the thumbnail is in the memory cache this calls back straight away
+        ImageLoader.get(mContext).load(bandwidthEstimator.chooseThumbnailUrl(photo.getImage())).into(holder.preview);
+    }
+
+
+    //starts again any page whose image was cancelled before it finished loading, when the activity stopped
+    void reloadImages() {
+        for(PageViewHolder holder : mActivePages) {
+            if(!holder.image.isLoaded()) {
+                holder.image.recycle();
+                loadImage(holder, holder.photo);
+            }
+        }
+    }
+
+
+    /*
+        downloads a photo's full size image without decoding it, so it's on disk by the time its page
+        is created. Used for the photos just outside the pages the pager keeps alive
+     */
+    void prefetch(int position) {
+        if(position >= 0 && position < mPhotoList.size()) {
+            String url = BandwidthEstimator.getInstance().chooseLargeUrl(mPhotoList.get(position).getLink());
+            TiledImageView.prefetch(mContext, url);
+        }
+    }
+
+
+    private class PageViewHolder {
+        final View page;
+        final TextView author;
+        final TextView title;
+        final TextView tags;
+        final TiledImageView image;
+        Photo photo;
+
+        //picasso only keeps a weak reference to targets, so the holder has to keep this one alive
+        final Target preview = new Target() {
+            @Override
+            public void onBitmapLoaded(Bitmap bitmap, Picasso.LoadedFrom from) {
+                image.setPlaceholder(new BitmapDrawable(mContext.getResources(), bitmap));
+            }
+
+            @Override
+            public void onBitmapFailed(Drawable errorDrawable) {
+            }
+
+            @Override
+            public void onPrepareLoad(Drawable placeHolderDrawable) {
+            }
+        };
+
+        PageViewHolder(View page) {
+            this.page = page;
+            this.author = (TextView) page.findViewById(R.id.photo_author);
+            this.title = (TextView) page.findViewById(R.id.photo_title);
+            this.tags = (TextView) page.findViewById(R.id.photo_tags);
+            this.image = (TiledImageView) page.findViewById(R.id.photo_image);
+        }
+    }
+}
@@ -0,0 +1,200 @@
+package com.peterponterio.flickrbrowser;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.v4.content.ContextCompat;
+import android.support.v4.util.LruCache;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/*
+    A tiny version of each photo, at most 8 pixels on its longest side, that can be shown straight away
+    in place of the real thumbnail. Stretched to the size of the row with bitmap filtering it looks like
+    a blurred copy of the photo, which is a lot closer to what's coming than the generic placeholder.
+
+    It's worked out from the thumbnail the first time that's downloaded, stored on the Photo and in the
+    feed snapshot, and remembered here by image URL so a fresh download of the feed can pick it up too.
+
+    The preview is stored as bytes: the width, the height, then red, green and blue for each pixel.
+    That's under 200 bytes a photo.
+
+    Shrinking the thumbnail is done on a background thread, and the drawable made from a preview is kept
+    so that binding the same photo again doesn't make a new bitmap.
+ */
+class PhotoPreview {
+
+    private static final int PREVIEW_SIZE = 8;
+    private static final int MAX_ENTRIES = 500;
+
+    private static final LruCache<String, byte[]> sCache = new LruCache<>(MAX_ENTRIES);
+
+    //the drawables made from previews, by image URL. Each view gets its own drawable sharing the bitmap
+    private static final LruCache<String, Drawable.ConstantState> sDrawables = new LruCache<>(MAX_ENTRIES);
+
+    private static final Handler sMainHandler = new Handler(Looper.getMainLooper());
+
+    //image URLs whose preview is being worked out, only touched on the main thread
+    private static final Set<String> sPending = new HashSet<>();
+
+    //whether any preview has been learned since the feed was last saved, only touched on the main thread
+    private static boolean sLearnedSinceSave = false;
+
+    static {
+        //each entry is an image URL and up to 194 bytes of preview
+        MemoryBudget.getInstance().register(new MemoryBudget.LruCacheConsumer("PhotoPreview", sCache, 400));
+        //and an 8 pixel bitmap is 256 bytes
+        MemoryBudget.getInstance().register(new MemoryBudget.LruCacheConsumer("PhotoPreviewDrawables", sDrawables, 400));
+    }
+
+    private PhotoPreview() {
+    }
+
+
+    //the preview for this photo if we have one, otherwise null
+    static byte[] get(Photo photo) {
+        byte[] preview = photo.getPreview();
+        if(preview == null) {
+            preview = sCache.get(photo.getImage());
+            if(preview != null) {
+                photo.setPreview(preview);
+            }
+        }
+        return preview;
+    }
+
+
+    //makes a note of a preview that was loaded from somewhere else, like the feed snapshot
+    static void remember(Photo photo) {
+        byte[] preview = photo.getPreview();
+        if(preview != null) {
+            sCache.put(photo.getImage(), preview);
+        }
+    }
+
+
+    /*
+        called on the main thread once the real thumbnail has been set. Only the first thumbnail of each
+        photo is looked at. Shrinking it is too slow for the main thread while the list is scrolling, so
+        it's done in the background and the preview is stored once we're back on the main thread
+     */
+    static void learn(final Photo photo, Drawable drawable) {
+        if(get(photo) != null || !(drawable instanceof BitmapDrawable)) {
+            return;
+        }
+        final Bitmap bitmap = ((BitmapDrawable) drawable).getBitmap();
+        if(bitmap == null || bitmap.getWidth() <= 0 || bitmap.getHeight() <= 0) {
+            return;
+        }
+        final String image = photo.getImage();
+        if(!sPending.add(image)) {
+            return;
+        }
+
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                final byte[] preview = compute(bitmap);
+                sMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        sPending.remove(image);
+                        photo.setPreview(preview);
+                        sCache.put(image, preview);
+                        sLearnedSinceSave = true;
+                    }
+                });
+            }
+        });
+    }
+
+
+    /*
+        whether any previews have been learned since the last time this was called. The activity uses
+        it to only save the feed again when there's something new to keep
+     */
+    static boolean takeLearnedSinceSave() {
+        boolean learned = sLearnedSinceSave;
+        sLearnedSinceSave = false;
+        return learned;
+    }
+
+
+    /*
+        the drawable to show while the photo's thumbnail loads, its preview if there is one and the
+        usual placeholder if not
+     */
+    static Drawable getPlaceholder(Context context, Photo photo) {
+        byte[] preview = get(photo);
+        if(preview != null) {
+            Drawable.ConstantState state = sDrawables.get(photo.getImage());
+            if(state != null) {
+                return state.newDrawable(context.getResources());
+            }
+            Drawable drawable = toDrawable(context, preview);
+            if(drawable != null) {
+                sDrawables.put(photo.getImage(), drawable.getConstantState());
+                return drawable;
+            }
+        }
+        return ContextCompat.getDrawable(context, R.drawable.placeholder);
+    }
+
+
+    private static byte[] compute(Bitmap bitmap) {
+        //keep the shape of the photo, with the longest side PREVIEW_SIZE pixels
+        int width;
+        int height;
+        if(bitmap.getWidth() >= bitmap.getHeight()) {
+            width = PREVIEW_SIZE;
+            height = Math.max(1, Math.round((float) PREVIEW_SIZE * bitmap.getHeight() / bitmap.getWidth()));
+        } else {
+            height = PREVIEW_SIZE;
+            width = Math.max(1, Math.round((float) PREVIEW_SIZE * bitmap.getWidth() / bitmap.getHeight()));
+        }
+
+        //filtering averages the pixels together rather than just picking some of them
+        Bitmap small = Bitmap.createScaledBitmap(bitmap, width, height, true);
+        int[] pixels = new int[width * height];
+        small.getPixels(pixels, 0, width, 0, 0, width, height);
+        if(small != bitmap) {
+            small.recycle();
+        }
+
+        byte[] preview = new byte[2 + pixels.length * 3];
+        preview[0] = (byte) width;
+        preview[1] = (byte) height;
+        for(int i = 0; i < pixels.length; i++) {
+            preview[2 + i * 3] = (byte) Color.red(pixels[i]);
+            preview[3 + i * 3] = (byte) Color.green(pixels[i]);
+            preview[4 + i * 3] = (byte) Color.blue(pixels[i]);
+        }
+        return preview;
+    }
+
+
+    private static Drawable toDrawable(Context context, byte[] preview) {
+        int width = preview[0];
+        int height = preview[1];
+        if(width <= 0 || height <= 0 || preview.length != 2 + width * height * 3) {
+            return null;
+        }
+
+        int[] pixels = new int[width * height];
+        for(int i = 0; i < pixels.length; i++) {
+            pixels[i] = Color.rgb(preview[2 + i * 3] & 0xff, preview[3 + i * 3] & 0xff, preview[4 + i * 3] & 0xff);
+        }
+        BitmapDrawable drawable = new BitmapDrawable(context.getResources(),
+                Bitmap.createBitmap(pixels, width, height, Bitmap.Config.ARGB_8888));
+
+        //stretching the tiny bitmap with filtering on is what blurs it
+        drawable.setFilterBitmap(true);
+        return drawable;
+    }
+}
@@ -28,6 +28,7 @@ class RecyclerItemClickListener extends RecyclerView.SimpleOnItemTouchListener {
 
     private final OnRecyclerClickListener mListener;
     private final GestureDetectorCompat mGestureDetector;
+    private final FrameMetricsMonitor mFrameMonitor;
 
 
     /*
@@ -36,6 +37,7 @@ class RecyclerItemClickListener extends RecyclerView.SimpleOnItemTouchListener {
      */
     public RecyclerItemClickListener(Context context, final RecyclerView recyclerView, OnRecyclerClickListener listener) {
         mListener = listener;
+        mFrameMonitor = FrameMetricsMonitor.getInstance(context);
 
         //Creating an anonymous class that extends SimpleOnGestureListener for the second parameter so that
         //we can override the methods were interested in
@@ -96,7 +98,11 @@ class RecyclerItemClickListener extends RecyclerView.SimpleOnItemTouchListener {
             doesnt handle should return false, so that something else can deal with it
          */
         if(mGestureDetector != null) {
+            mFrameMonitor.beginPhase(FrameMetricsMonitor.Phase.TOUCH);
+            MainThreadWatchdog.getInstance().enter(MainThreadWatchdog.Section.TOUCH);
             boolean result = mGestureDetector.onTouchEvent(e);
+            MainThreadWatchdog.getInstance().exit(MainThreadWatchdog.Section.TOUCH);
+            mFrameMonitor.endPhase(FrameMetricsMonitor.Phase.TOUCH);
             Log.d(TAG, "onInterceptTouchEvent: returned: " + result );
             return result;
         } else {
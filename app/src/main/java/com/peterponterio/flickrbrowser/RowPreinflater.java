@@ -0,0 +1,91 @@
+package com.peterponterio.flickrbrowser;
+
+import android.support.annotation.NonNull;
+import android.support.v4.view.AsyncLayoutInflater;
+import android.support.v7.widget.RecyclerView;
+import android.util.Log;
+import android.view.View;
+import android.view.ViewGroup;
+
+/*
+    Inflates the list's first screenful of rows on a background thread while the feed is downloading.
+
+    Without this the rows are inflated in onCreateViewHolder the moment the first photos arrive, all in
+    the same frame, which is a visible hitch right when the user is waiting to see something. Instead
+    each row is inflated by an AsyncLayoutInflater as soon as the activity is created, and again for the
+    other kind of row whenever the layout mode changes. When a row is ready, the adapter wraps it in a
+    view holder of the right view type, which is put in the recyclerView's pool. When the feed arrives
+    the recyclerView finds a screenful of holders in the pool and only has to bind them.
+
+    AsyncLayoutInflater inflates on the main thread instead if a layout can't be inflated in the
+    background, so the worst case is the same as before.
+ */
+class RowPreinflater implements AsyncLayoutInflater.OnInflateFinishedListener {
+    private static final String TAG = "RowPreinflater";
+
+    //AsyncLayoutInflater's queue only holds 10 and blocks the main thread when it's full, so stay under that
+    private static final int MAX_QUEUED = 4;
+
+    private final RecyclerView mRecyclerView;
+    private final FlickrRecyclerViewAdapter mAdapter;
+    private final RecyclerView.RecycledViewPool mPool;
+    private final AsyncLayoutInflater mInflater;
+    private boolean mCancelled = false;
+    private int mLayout;
+    private int mQueued = 0;
+    private int mRemaining = 0;
+    private long mStartNanos = 0;
+
+    RowPreinflater(RecyclerView recyclerView, FlickrRecyclerViewAdapter adapter, RecyclerView.RecycledViewPool pool) {
+        mRecyclerView = recyclerView;
+        mAdapter = adapter;
+        mPool = pool;
+        mInflater = new AsyncLayoutInflater(recyclerView.getContext());
+    }
+
+
+    //starts inflating count rows of the adapter's current view type, instead of whatever was asked for before
+    void preinflate(int count) {
+        mLayout = FlickrRecyclerViewAdapter.getLayoutForViewType(mAdapter.getItemViewType(0));
+        Log.d(TAG, "preinflate: " + count + " rows");
+        mStartNanos = System.nanoTime();
+        mRemaining = count;
+        queueMore();
+    }
+
+
+    private void queueMore() {
+        while(!mCancelled && mRemaining > 0 && mQueued < MAX_QUEUED) {
+            mRemaining--;
+            mQueued++;
+            mInflater.inflate(mLayout, mRecyclerView, this);
+        }
+    }
+
+
+    //rows that finish inflating after this are thrown away
+    void cancel() {
+        mCancelled = true;
+    }
+
+
+    //called on the main thread for each row
+    @Override
+    public void onInflateFinished(@NonNull View view, int resid, ViewGroup parent) {
+        mQueued--;
+        if(mCancelled) {
+            return;
+        }
+
+        //the layout mode could have changed while this row was inflating, then it's no use to anyone
+        //and the rows for the new mode are already being queued
+        int viewType = mAdapter.getItemViewType(0);
+        if(resid == FlickrRecyclerViewAdapter.getLayoutForViewType(viewType)) {
+            mPool.putRecycledView(mAdapter.createViewHolderFor(mRecyclerView, viewType, view));
+        }
+        queueMore();
+        if(mQueued == 0) {
+            Log.d(TAG, "onInflateFinished: all rows ready after " + (System.nanoTime() - mStartNanos) / 1000 + "us");
+        }
+    }
+}
@@ -3,17 +3,60 @@ package com.peterponterio.flickrbrowser;
 import android.app.SearchManager;
 import android.app.SearchableInfo;
 import android.content.Context;
+import android.content.Intent;
 import android.content.SharedPreferences;
 import android.os.Bundle;
+import android.os.Handler;
 import android.preference.PreferenceManager;
+import android.support.v4.util.LruCache;
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
 import android.util.Log;
 import android.view.Menu;
+import android.view.View;
 import android.widget.SearchView;
 
-public class SearchActivity extends BaseActivity {
+import java.util.ArrayList;
+import java.util.List;
+
+public class SearchActivity extends BaseActivity implements GetFlickrJsonData.OnDataAvailable,
+        RecyclerItemClickListener.OnRecyclerClickListener {
 
     private static final String TAG = "SearchActivity";
+
+    //how long typing has to pause for before we search, and the shortest query worth searching for
+    private static final long DEBOUNCE_MILLIS = 300;
+    private static final int MIN_QUERY_LENGTH = 2;
+
+    /*
+        results of recent live searches, so that deleting a few characters or typing the same query again
+        shows results straight away without going back to flickr. Static so the results are still there
+        the next time the search screen is opened
+     */
+    private static final int MAX_CACHED_QUERIES = 20;
+    private static final LruCache<String, List<Photo>> sRecentResults = new LruCache<>(MAX_CACHED_QUERIES);
+
+    static {
+        //about twenty photos per query at a kilobyte each
+        MemoryBudget.getInstance().register(new MemoryBudget.LruCacheConsumer("RecentSearches", sRecentResults, 20 * 1024));
+    }
+
     private SearchView mSearchView;
+    private RecyclerView mResultsView;
+    private FlickrRecyclerViewAdapter mResultsAdapter;
+
+    private final Handler mHandler = new Handler();
+    private String mPendingQuery = null;
+    private GetFlickrJsonData mInFlightSearch = null;
+    private String mInFlightQuery = null;
+    private boolean mImagesCancelled = false;
+
+    private final Runnable mSearchRunnable = new Runnable() {
+        @Override
+        public void run() {
+            startLiveSearch(mPendingQuery);
+        }
+    };
 
 
     @Override
@@ -23,9 +66,148 @@ public class SearchActivity extends BaseActivity {
         setContentView(R.layout.activity_search);
 
         activateToolbar(true);
+
+        //live results are shown in the same kind of list as the main screen
+        mResultsView = (RecyclerView) findViewById(R.id.search_results);
+        mResultsView.setLayoutManager(new LinearLayoutManager(this));
+        mResultsView.addOnItemTouchListener(new RecyclerItemClickListener(this, mResultsView, this));
+        mResultsAdapter = new FlickrRecyclerViewAdapter(this, new ArrayList<Photo>());
+        mResultsView.setAdapter(mResultsAdapter);
         Log.d(TAG, "onCreate: ends");
     }
 
+
+    @Override
+    protected void onStart() {
+        super.onStart();
+        if(mImagesCancelled) {
+            mResultsAdapter.notifyDataSetChanged();
+            mImagesCancelled = false;
+        }
+    }
+
+    //stop downloading result thumbnails nobody can see, they're rebound when we come back
+    @Override
+    protected void onStop() {
+        mImagesCancelled = ImageScheduler.getInstance().cancelAll(this) > 0;
+        super.onStop();
+    }
+
+    @Override
+    protected void onDestroy() {
+        mHandler.removeCallbacks(mSearchRunnable);
+        cancelInFlightSearch();
+        super.onDestroy();
+    }
+
+
+    /*
+        called for every keystroke. Rather than searching straight away, we wait until the user stops
+        typing for a moment, so a word typed quickly only costs one request. Anything we've searched for
+        recently is shown immediately from the cache
+     */
+    private void onLiveQueryChanged(String newText) {
+        String query = newText.trim();
+        mHandler.removeCallbacks(mSearchRunnable);
+
+        if(query.length() < MIN_QUERY_LENGTH) {
+            mPendingQuery = null;
+            cancelInFlightSearch();
+            return;
+        }
+
+        List<Photo> cached = sRecentResults.get(query);
+        if(cached != null) {
+            Log.d(TAG, "onLiveQueryChanged: cached results for " + query);
+            cancelInFlightSearch();
+            showResults(cached);
+            return;
+        }
+
+        mPendingQuery = query;
+        mHandler.postDelayed(mSearchRunnable, DEBOUNCE_MILLIS);
+    }
+
+
+    private void startLiveSearch(String query) {
+        if(query == null || query.equals(mInFlightQuery)) {
+            return;
+        }
+        Log.d(TAG, "startLiveSearch: " + query);
+
+        //whatever we were searching for before isn't wanted any more
+        cancelInFlightSearch();
+
+        /*
+            run on the feed pipeline rather than the default serial executor, otherwise a superseded search
+            that's still finishing its download would hold up the new one. The pipeline also lets the
+            new search download while the old one is still being parsed
+         */
+        mInFlightQuery = query;
+        mInFlightSearch = new GetFlickrJsonData(this, FLICKR_FEED_URL, "en-us", true);
+        mInFlightSearch.executeOnPipeline(query);
+    }
+
+
+    /*
+        a cancelled GetFlickrJsonData never passes its results on, the pipeline skips it if it hasn't
+        got to it yet, so they never reach onDataAvailable and can't overwrite the results of a newer search
+     */
+    private void cancelInFlightSearch() {
+        if(mInFlightSearch != null) {
+            Log.d(TAG, "cancelInFlightSearch: cancelling " + mInFlightQuery);
+            mInFlightSearch.cancel(true);
+            mInFlightSearch = null;
+            mInFlightQuery = null;
+        }
+    }
+
+
+    private void showResults(List<Photo> photos) {
+        mResultsView.setVisibility(View.VISIBLE);
+        mResultsAdapter.loadNewData(photos);
+    }
+
+
+    @Override
+    public void onDataAvailable(List<Photo> data, DownloadStatus status) {
+        Log.d(TAG, "onDataAvailable: starts");
+        String query = mInFlightQuery;
+        mInFlightSearch = null;
+        mInFlightQuery = null;
+
+        if(status == DownloadStatus.OK && data != null) {
+            sRecentResults.put(query, data);
+            showResults(data);
+        } else {
+            Log.d(TAG, "onDataAvailable failed with status " + status);
+        }
+    }
+
+    @Override
+    public void onDataChunkAvailable(List<Photo> chunk, int start) {
+        //live searches don't use streaming, a search only returns one screen or so of photos anyway
+    }
+
+
+    @Override
+    public void onItemClick(View view, int position) {
+        Log.d(TAG, "onItemClick: starts");
+        Photo photo = mResultsAdapter.getPhoto(position);
+        if(photo != null) {
+            Intent intent = new Intent(this, PhotoDetailActivity.class);
+            intent.putExtra(PHOTO_TRANSFER, photo);
+            intent.putExtra(PHOTO_LIST_ID, PhotoListHolder.put(mResultsAdapter.getPhotos()));
+            intent.putExtra(PHOTO_POSITION, position);
+            startActivity(intent);
+        }
+    }
+
+    @Override
+    public void onItemLongClick(View view, int position) {
+        onItemClick(view, position);
+    }
+
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         Log.d(TAG, "onCreateOptionsMenu: starts");
@@ -93,6 +275,10 @@ public class SearchActivity extends BaseActivity {
                 SharedPreferences sharedPreferences = PreferenceManager.getDefaultSharedPreferences(getApplicationContext());
                 sharedPreferences.edit().putString(FLICKR_QUERY, query).apply();
 
+                //main activity is about to search for this itself
+                mHandler.removeCallbacks(mSearchRunnable);
+                cancelInFlightSearch();
+
                 mSearchView.clearFocus(); //takes us back to previous screen
                 finish();
                 return true;
@@ -100,7 +286,8 @@ public class SearchActivity extends BaseActivity {
 
             @Override
             public boolean onQueryTextChange(String newText) {
-                return false;
+                onLiveQueryChanged(newText);
+                return true;
             }
         });
 
@@ -0,0 +1,575 @@
+package com.peterponterio.flickrbrowser;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.graphics.drawable.Drawable;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.v4.util.LruCache;
+import android.util.AttributeSet;
+import android.util.DisplayMetrics;
+import android.util.Log;
+import android.view.GestureDetector;
+import android.view.MotionEvent;
+import android.view.ScaleGestureDetector;
+import android.view.View;
+import android.view.ViewParent;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/*
+    Shows a large photo that can be pinch zoomed all the way in to its full resolution without ever
+    decoding the whole thing at full size.
+
+    The image is downloaded to a file first. From the file we decode one low resolution copy that's
+    about the size of the screen, the base layer, which is what's drawn when the photo is zoomed out.
+    When the user zooms in past what the base layer can show sharply, only the part of the photo that's
+    on screen is decoded, in square tiles, at the resolution the current zoom needs. Tiles are kept in
+    a cache so panning back over the same area doesn't decode it again.
+
+    However big the photo is, the memory we use is the base layer plus the tile cache.
+
+    All of the view's state is only touched on the main thread, the downloads and decodes run on
+    background executors and post their results back.
+ */
+class TiledImageView extends View {
+    private static final String TAG = "TiledImageView";
+
+    //tiles are this many screen pixels square, whatever the zoom level
+    private static final int TILE_SIZE = 256;
+
+    //let the user zoom in until each pixel of the photo covers this many screen pixels
+    private static final float MAX_PIXEL_ZOOM = 2f;
+    private static final float DOUBLE_TAP_ZOOM = 3f;
+
+    //downloads are run by the ImageScheduler, decodes share one thread so they don't fight over the cpu
+    private static final ExecutorService sDecodeExecutor = Executors.newSingleThreadExecutor();
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final Paint mPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private final ScaleGestureDetector mScaleDetector;
+    private final GestureDetector mGestureDetector;
+    private final TileCache mTileCache;
+
+    private String mUrl = null;
+    private int mGeneration = 0; //changes whenever a new image is set, so old results can be ignored
+    private BitmapRegionDecoder mDecoder = null;
+    private int mImageWidth = 0;
+    private int mImageHeight = 0;
+    private Bitmap mBaseBitmap = null;
+    private int mBaseSampleSize = 1;
+    private Drawable mPlaceholder = null;
+    private float mAspectRatioHint = 0f;
+
+    //screen position = image position * mScale + offset
+    private float mScale = 1f;
+    private float mMinScale = 1f;
+    private float mOffsetX = 0f;
+    private float mOffsetY = 0f;
+
+    private final Set<String> mPendingTiles = new HashSet<>();
+    private final Rect mTileRect = new Rect();
+    private final RectF mTileDest = new RectF();
+    private final RectF mImageDest = new RectF();
+
+
+    public TiledImageView(Context context) {
+        this(context, null);
+    }
+
+    public TiledImageView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+
+        //enough tiles to cover the screen a few times over, tiles are RGB_565 so 2 bytes a pixel
+        DisplayMetrics metrics = context.getResources().getDisplayMetrics();
+        mTileCache = new TileCache(metrics.widthPixels * metrics.heightPixels * 2 * 3);
+
+        mScaleDetector = new ScaleGestureDetector(context, new ScaleGestureDetector.SimpleOnScaleGestureListener() {
+            @Override
+            public boolean onScale(ScaleGestureDetector detector) {
+                zoomTo(mScale * detector.getScaleFactor(), detector.getFocusX(), detector.getFocusY());
+                return true;
+            }
+        });
+
+        mGestureDetector = new GestureDetector(context, new GestureDetector.SimpleOnGestureListener() {
+            @Override
+            public boolean onDown(MotionEvent e) {
+                return true;
+            }
+
+            @Override
+            public boolean onScroll(MotionEvent e1, MotionEvent e2, float distanceX, float distanceY) {
+                mOffsetX -= distanceX;
+                mOffsetY -= distanceY;
+                clampOffsets();
+                invalidate();
+                return true;
+            }
+
+            @Override
+            public boolean onDoubleTap(MotionEvent e) {
+                //double tap zooms in, or back out again if we're already zoomed
+                if(mScale > mMinScale * 1.05f) {
+                    zoomTo(mMinScale, e.getX(), e.getY());
+                } else {
+                    zoomTo(mMinScale * DOUBLE_TAP_ZOOM, e.getX(), e.getY());
+                }
+                return true;
+            }
+        });
+    }
+
+
+    //drawn until the base layer is ready, and if the image can't be loaded
+    void setPlaceholder(Drawable placeholder) {
+        mPlaceholder = placeholder;
+        invalidate();
+    }
+
+    //height divided by width, used to size the view before we know the real size of the photo
+    void setAspectRatioHint(float aspectRatio) {
+        mAspectRatioHint = aspectRatio;
+        requestLayout();
+    }
+
+
+    void setImageUrl(String url) {
+        if(url != null && url.equals(mUrl)) {
+            return;
+        }
+        recycle();
+        mUrl = url;
+        if(url == null) {
+            return;
+        }
+
+        final String imageUrl = url;
+        final int generation = mGeneration;
+        final Context context = getContext().getApplicationContext();
+        final DisplayMetrics metrics = getResources().getDisplayMetrics();
+        final int screenWidth = metrics.widthPixels;
+        final int screenHeight = metrics.heightPixels;
+        Log.d(TAG, "setImageUrl: " + url);
+
+        //the photo the user is looking at comes before prefetching, but after the rows of a list on screen
+        ImageScheduler.getInstance().execute(getContext(), ImageScheduler.Priority.DETAIL, url, this, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    //the decoder reads from its own copy of the file descriptor, so ours can be closed straight away
+                    final BitmapRegionDecoder decoder;
+                    FileInputStream stored = openImage(context, imageUrl);
+                    try {
+                        decoder = BitmapRegionDecoder.newInstance(stored.getFD(), false);
+                    } finally {
+                        stored.close();
+                    }
+                    final int sampleSize = calculateBaseSampleSize(decoder.getWidth(), decoder.getHeight(),
+                            screenWidth, screenHeight);
+                    final Bitmap base = decodeRegion(decoder, new Rect(0, 0, decoder.getWidth(), decoder.getHeight()), sampleSize);
+                    mHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            onBaseLayerReady(generation, decoder, base, sampleSize);
+                        }
+                    });
+                } catch(IOException e) {
+                    Log.e(TAG, "setImageUrl: Couldn't load image " + e.getMessage());
+                }
+            }
+        });
+    }
+
+
+    private void onBaseLayerReady(int generation, BitmapRegionDecoder decoder, Bitmap base, int sampleSize) {
+        if(generation != mGeneration) {
+            //the view has moved on to another image
+            decoder.recycle();
+            if(base != null) {
+                base.recycle();
+            }
+            return;
+        }
+        mDecoder = decoder;
+        mImageWidth = decoder.getWidth();
+        mImageHeight = decoder.getHeight();
+        mBaseBitmap = base;
+        mBaseSampleSize = sampleSize;
+        Log.d(TAG, "onBaseLayerReady: " + mImageWidth + "x" + mImageHeight + " base sample size " + sampleSize);
+
+        requestLayout();
+        resetZoom();
+        invalidate();
+    }
+
+
+    //true once the image has been downloaded and can be shown
+    boolean isLoaded() {
+        return mBaseBitmap != null;
+    }
+
+
+    //lets go of everything belonging to the current image. The view can be given a new one afterwards
+    void recycle() {
+        ImageScheduler.getInstance().cancel(this);
+        mGeneration++;
+        mUrl = null;
+        mPendingTiles.clear();
+        mTileCache.evictAll();
+        if(mDecoder != null) {
+            //decodes already queued hold their own reference, so let them finish before recycling
+            final BitmapRegionDecoder decoder = mDecoder;
+            sDecodeExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    decoder.recycle();
+                }
+            });
+            mDecoder = null;
+        }
+        if(mBaseBitmap != null) {
+            mBaseBitmap.recycle();
+            mBaseBitmap = null;
+        }
+        mImageWidth = 0;
+        mImageHeight = 0;
+        invalidate();
+    }
+
+
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+        MemoryBudget.getInstance().register(mTileCache);
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        MemoryBudget.getInstance().unregister(mTileCache);
+        super.onDetachedFromWindow();
+    }
+
+
+    @Override
+    protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
+        int width = MeasureSpec.getSize(widthMeasureSpec);
+        float aspectRatio = AspectRatioImageView.DEFAULT_ASPECT_RATIO;
+        if(mImageWidth > 0) {
+            aspectRatio = (float) mImageHeight / mImageWidth;
+        } else if(mAspectRatioHint > 0f) {
+            aspectRatio = mAspectRatioHint;
+        }
+
+        int height = Math.round(width * aspectRatio);
+        if(MeasureSpec.getMode(heightMeasureSpec) == MeasureSpec.EXACTLY) {
+            height = MeasureSpec.getSize(heightMeasureSpec);
+        } else if(MeasureSpec.getMode(heightMeasureSpec) == MeasureSpec.AT_MOST) {
+            height = Math.min(height, MeasureSpec.getSize(heightMeasureSpec));
+        }
+        setMeasuredDimension(width, height);
+    }
+
+
+    @Override
+    protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+        super.onSizeChanged(w, h, oldw, oldh);
+        resetZoom();
+    }
+
+
+    //zoom out so the whole photo fits in the view, centred
+    private void resetZoom() {
+        if(mImageWidth <= 0 || getWidth() <= 0 || getHeight() <= 0) {
+            return;
+        }
+        mMinScale = Math.min((float) getWidth() / mImageWidth, (float) getHeight() / mImageHeight);
+        mScale = mMinScale;
+        clampOffsets();
+    }
+
+
+    private float getMaxScale() {
+        return Math.max(mMinScale, MAX_PIXEL_ZOOM);
+    }
+
+
+    //changes the zoom while keeping the part of the photo under the focus point where it is
+    private void zoomTo(float scale, float focusX, float focusY) {
+        if(mImageWidth <= 0) {
+            return;
+        }
+        float newScale = Math.max(mMinScale, Math.min(getMaxScale(), scale));
+        float imageX = (focusX - mOffsetX) / mScale;
+        float imageY = (focusY - mOffsetY) / mScale;
+        mScale = newScale;
+        mOffsetX = focusX - imageX * mScale;
+        mOffsetY = focusY - imageY * mScale;
+        clampOffsets();
+        invalidate();
+    }
+
+
+    //a photo smaller than the view is centred, a bigger one can't be dragged away from the edges
+    private void clampOffsets() {
+        float scaledWidth = mImageWidth * mScale;
+        float scaledHeight = mImageHeight * mScale;
+
+        if(scaledWidth <= getWidth()) {
+            mOffsetX = (getWidth() - scaledWidth) / 2f;
+        } else {
+            mOffsetX = Math.max(getWidth() - scaledWidth, Math.min(0f, mOffsetX));
+        }
+        if(scaledHeight <= getHeight()) {
+            mOffsetY = (getHeight() - scaledHeight) / 2f;
+        } else {
+            mOffsetY = Math.max(getHeight() - scaledHeight, Math.min(0f, mOffsetY));
+        }
+    }
+
+
+    @Override
+    public boolean onTouchEvent(MotionEvent event) {
+        if(mImageWidth <= 0) {
+            return super.onTouchEvent(event);
+        }
+
+        //while zoomed in, or pinching, we need the touches rather than the scroll view we're in
+        ViewParent parent = getParent();
+        if(parent != null && (mScale > mMinScale || event.getPointerCount() > 1)) {
+            parent.requestDisallowInterceptTouchEvent(true);
+        }
+
+        boolean handled = mScaleDetector.onTouchEvent(event);
+        if(!mScaleDetector.isInProgress()) {
+            handled = mGestureDetector.onTouchEvent(event) || handled;
+        }
+        return handled || super.onTouchEvent(event);
+    }
+
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        super.onDraw(canvas);
+
+        if(mBaseBitmap == null) {
+            if(mPlaceholder != null) {
+                mPlaceholder.setBounds(0, 0, getWidth(), getHeight());
+                mPlaceholder.draw(canvas);
+            }
+            return;
+        }
+
+        //everything from here on is drawn in image coordinates
+        canvas.save();
+        canvas.translate(mOffsetX, mOffsetY);
+        canvas.scale(mScale, mScale);
+
+        mImageDest.set(0, 0, mImageWidth, mImageHeight);
+        canvas.drawBitmap(mBaseBitmap, null, mImageDest, mPaint);
+
+        //only bother with tiles once we're zoomed in past what the base layer can show sharply
+        int sampleSize = calculateSampleSizeForScale(mScale);
+        if(sampleSize < mBaseSampleSize && mDecoder != null) {
+            drawTiles(canvas, sampleSize);
+        }
+        canvas.restore();
+    }
+
+
+    private void drawTiles(Canvas canvas, int sampleSize) {
+        //the part of the photo that's on screen, in image pixels
+        int left = (int) Math.max(0, -mOffsetX / mScale);
+        int top = (int) Math.max(0, -mOffsetY / mScale);
+        int right = (int) Math.min(mImageWidth, (getWidth() - mOffsetX) / mScale);
+        int bottom = (int) Math.min(mImageHeight, (getHeight() - mOffsetY) / mScale);
+
+        int tileSize = TILE_SIZE * sampleSize;
+        for(int row = top / tileSize; row * tileSize < bottom; row++) {
+            for(int col = left / tileSize; col * tileSize < right; col++) {
+                String key = sampleSize + ":" + col + ":" + row;
+                Bitmap tile = mTileCache.get(key);
+                if(tile != null) {
+                    mTileDest.set(col * tileSize, row * tileSize,
+                            Math.min(mImageWidth, (col + 1) * tileSize), Math.min(mImageHeight, (row + 1) * tileSize));
+                    canvas.drawBitmap(tile, null, mTileDest, mPaint);
+                } else {
+                    requestTile(key, sampleSize, col, row, tileSize);
+                }
+            }
+        }
+    }
+
+
+    private void requestTile(final String key, final int sampleSize, int col, int row, int tileSize) {
+        if(mPendingTiles.contains(key)) {
+            return;
+        }
+        mPendingTiles.add(key);
+
+        mTileRect.set(col * tileSize, row * tileSize,
+                Math.min(mImageWidth, (col + 1) * tileSize), Math.min(mImageHeight, (row + 1) * tileSize));
+        final Rect region = new Rect(mTileRect);
+        final BitmapRegionDecoder decoder = mDecoder;
+        final int generation = mGeneration;
+
+        sDecodeExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                //the user may have zoomed or panned somewhere else while this was waiting
+                if(!isTileStillWanted(generation, sampleSize) || decoder.isRecycled()) {
+                    mHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            mPendingTiles.remove(key);
+                        }
+                    });
+                    return;
+                }
+                final Bitmap tile = decodeRegion(decoder, region, sampleSize);
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        mPendingTiles.remove(key);
+                        if(tile == null) {
+                            return;
+                        }
+                        if(generation != mGeneration) {
+                            tile.recycle();
+                            return;
+                        }
+                        mTileCache.put(key, tile);
+                        invalidate();
+                    }
+                });
+            }
+        });
+    }
+
+
+    //read from the decode thread, a stale answer only means one extra or one skipped decode
+    private boolean isTileStillWanted(int generation, int sampleSize) {
+        return generation == mGeneration && sampleSize == calculateSampleSizeForScale(mScale);
+    }
+
+
+    //the biggest power of two sample size that still gives at least one decoded pixel per screen pixel
+    private static int calculateSampleSizeForScale(float scale) {
+        int sampleSize = 1;
+        while(sampleSize * 2 * scale <= 1f) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    /*
+        the sample size for the base layer. It's as sharp as the screen is wide when the photo fits the
+        width, but never more than one screen's worth of pixels, so a long thin panorama can't decode into
+        a huge bitmap. The tiles fill in the detail when the user zooms in
+     */
+    private static int calculateBaseSampleSize(int imageWidth, int imageHeight, int screenWidth, int screenHeight) {
+        long maxPixels = (long) screenWidth * screenHeight;
+        int sampleSize = 1;
+        while(imageWidth / (sampleSize * 2) >= screenWidth
+                || (long) (imageWidth / sampleSize) * (imageHeight / sampleSize) > maxPixels) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+
+    private static Bitmap decodeRegion(BitmapRegionDecoder decoder, Rect region, int sampleSize) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = sampleSize;
+        options.inPreferredConfig = Bitmap.Config.RGB_565;
+        try {
+            return decoder.decodeRegion(region, options);
+        } catch(IllegalArgumentException e) {
+            //thrown if the decoder was recycled under us
+            Log.e(TAG, "decodeRegion: " + e.getMessage());
+            return null;
+        }
+    }
+
+
+    //downloads an image to the file setImageUrl would use, without decoding it
+    static void prefetch(Context context, final String url) {
+        if(url == null) {
+            return;
+        }
+        final Context appContext = context.getApplicationContext();
+        ImageScheduler.getInstance().execute(context, ImageScheduler.Priority.PREFETCH, url, null, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    openImage(appContext, url).close();
+                } catch(IOException e) {
+                    Log.e(TAG, "prefetch: Couldn't download image " + e.getMessage());
+                }
+            }
+        });
+    }
+
+
+    /*
+        BitmapRegionDecoder needs the whole encoded image, so download it to a file first. The file is
+        kept in the DiskImageStore, so opening the same photo again doesn't download it twice. Returns the
+        stored image opened for reading, the caller closes it
+     */
+    private static FileInputStream openImage(Context context, String url) throws IOException {
+        DiskImageStore store = DiskImageStore.getInstance(context);
+        FileInputStream stored = store.open(url);
+        if(stored != null) {
+            return stored;
+        }
+        return store.put(url, MeteredDownloader.openStream(url));
+    }
+
+
+    //decoded tiles, sized in bytes, that the memory budget can take back
+    private static class TileCache extends LruCache<String, Bitmap> implements MemoryBudget.MemoryConsumer {
+
+        TileCache(int maxBytes) {
+            super(maxBytes);
+        }
+
+        @Override
+        protected int sizeOf(String key, Bitmap value) {
+            return value.getRowBytes() * value.getHeight();
+        }
+
+        @Override
+        protected void entryRemoved(boolean evicted, String key, Bitmap oldValue, Bitmap newValue) {
+            //tiles are only ever drawn from the cache, so once they're out of it nothing is using them
+            oldValue.recycle();
+        }
+
+        @Override
+        public String getName() {
+            return "TileCache";
+        }
+
+        @Override
+        public long getSizeBytes() {
+            return size();
+        }
+
+        @Override
+        public long trimToFraction(float fraction) {
+            int before = size();
+            trimToSize((int) (before * fraction));
+            return before - size();
+        }
+    }
+}
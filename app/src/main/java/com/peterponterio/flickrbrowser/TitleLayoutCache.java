@@ -0,0 +1,179 @@
+package com.peterponterio.flickrbrowser;
+
+import android.support.v4.util.LruCache;
+import android.text.Layout;
+import android.text.StaticLayout;
+import android.text.TextPaint;
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+    Text layouts for the photo titles in the list, worked out on a background thread before the rows
+    that need them are bound.
+
+    Measuring a title and breaking it into lines is most of the cost of setting the text of a row, and
+    flickr titles can be long or full of emoji. Setting it in onBindViewHolder means it happens on the
+    main thread while the list is scrolling. Instead, each batch of photos is laid out here on the parse
+    thread before it's handed over, and the TitleView in the row just attaches the finished layout.
+
+    A layout only fits the width and text style it was made for, and we don't know those until a
+    TitleView has been measured. So each TitleView records its Spec here, and batches are laid out for
+    the most recent few specs. That covers the list and the grid, and both orientations. Until a row has
+    been measured there's nothing to lay out for, so the first screen of the first launch is still laid
+    out by the views themselves.
+ */
+class TitleLayoutCache {
+    private static final String TAG = "TitleLayoutCache";
+
+    private static final int MAX_ENTRIES = 400;
+    private static final int MAX_SPECS = 3;
+
+    private static final LruCache<String, Layout> sCache = new LruCache<>(MAX_ENTRIES);
+
+    //most recently used first, guarded by sSpecs
+    private static final List<Spec> sSpecs = new ArrayList<>();
+
+    //stats, for the log
+    private static volatile long sPrecomputed = 0;
+    private static volatile long sBuiltByView = 0;
+
+    static {
+        //a layout keeps its text and a few ints per line, titles are rarely more than a couple of lines
+        MemoryBudget.getInstance().register(new MemoryBudget.LruCacheConsumer("TitleLayoutCache", sCache, 512));
+    }
+
+    private TitleLayoutCache() {
+    }
+
+
+    //the width and text style a layout is made for. The paint is a private copy that's never drawn with
+    static class Spec {
+        final TextPaint mPaint;
+        final int mWidth;
+        final int mMaxLines;
+        final String mKey;
+
+        private Spec(TextPaint paint, int width, int maxLines, String key) {
+            mPaint = paint;
+            mWidth = width;
+            mMaxLines = maxLines;
+            mKey = key;
+        }
+
+        String keyFor(CharSequence text) {
+            return mKey + '\n' + text;
+        }
+    }
+
+
+    //called by a TitleView when it's measured, returns the spec to look its layouts up with
+    static Spec addSpec(TextPaint paint, int width, int maxLines) {
+        String key = width + "/" + maxLines + "/" + paint.getTextSize() + "/" + paint.getColor()
+                + "/" + paint.getTypeface();
+        synchronized(sSpecs) {
+            for(int i = 0; i < sSpecs.size(); i++) {
+                Spec spec = sSpecs.get(i);
+                if(spec.mKey.equals(key)) {
+                    sSpecs.remove(i);
+                    sSpecs.add(0, spec);
+                    return spec;
+                }
+            }
+            Log.d(TAG, "addSpec: " + key);
+            Spec spec = new Spec(new TextPaint(paint), width, maxLines, key);
+            sSpecs.add(0, spec);
+            if(sSpecs.size() > MAX_SPECS) {
+                sSpecs.remove(sSpecs.size() - 1);
+            }
+            return spec;
+        }
+    }
+
+
+    //the finished layout for this text, or null if it hasn't been laid out yet
+    static Layout get(CharSequence text, Spec spec) {
+        return sCache.get(spec.keyFor(text));
+    }
+
+
+    //the finished layout if there is one, otherwise the view lays it out now with its own paint
+    static Layout obtain(CharSequence text, Spec spec, TextPaint viewPaint) {
+        String key = spec.keyFor(text);
+        Layout layout = sCache.get(key);
+        if(layout == null) {
+            sBuiltByView++;
+            layout = build(text, viewPaint, spec.mWidth, spec.mMaxLines);
+            sCache.put(key, layout);
+        }
+        return layout;
+    }
+
+
+    /*
+        lays out the titles of a batch of photos for every spec we know about. Call it on a background
+        thread, after the photos are parsed and before they're handed to the adapter
+     */
+    static void precompute(List<Photo> photos) {
+        List<Spec> specs;
+        synchronized(sSpecs) {
+            specs = new ArrayList<>(sSpecs);
+        }
+        if(specs.isEmpty() || photos.isEmpty()) {
+            return;
+        }
+
+        long start = System.nanoTime();
+        int built = 0;
+        for(Spec spec : specs) {
+            //a paint of our own, so we're not measuring with one the main thread might be using
+            TextPaint paint = new TextPaint(spec.mPaint);
+            for(Photo photo : photos) {
+                String title = photo.getTitle();
+                if(title == null) {
+                    continue;
+                }
+                String key = spec.keyFor(title);
+                if(sCache.get(key) == null) {
+                    sCache.put(key, build(title, paint, spec.mWidth, spec.mMaxLines));
+                    built++;
+                }
+            }
+        }
+        sPrecomputed += built;
+        Log.d(TAG, "precompute: " + built + " layouts for " + photos.size() + " photos in "
+                + (System.nanoTime() - start) / 1000 + "us");
+    }
+
+
+    /*
+        StaticLayout can't stop at a number of lines or ellipsize until API 23, so when the text is too
+        long we ellipsize everything from the last line we can show onwards and lay it out again
+     */
+    private static Layout build(CharSequence text, TextPaint paint, int width, int maxLines) {
+        StaticLayout layout = new StaticLayout(text, paint, width, Layout.Alignment.ALIGN_NORMAL, 1f, 0f, false);
+        if(maxLines > 0 && layout.getLineCount() > maxLines) {
+            int lastLineStart = layout.getLineStart(maxLines - 1);
+            CharSequence lastLine = TextUtils.ellipsize(text.subSequence(lastLineStart, text.length()), paint,
+                    width, TextUtils.TruncateAt.END);
+            CharSequence shortened = TextUtils.concat(text.subSequence(0, lastLineStart), lastLine);
+            layout = new StaticLayout(shortened, paint, width, Layout.Alignment.ALIGN_NORMAL, 1f, 0f, false);
+        }
+        return layout;
+    }
+
+
+    static String getReport() {
+        return "precomputed=" + sPrecomputed
+                + " builtByView=" + sBuiltByView
+                + " hits=" + sCache.hitCount()
+                + " misses=" + sCache.missCount()
+                + " entries=" + sCache.size();
+    }
+
+    static void logReport() {
+        Log.d(TAG, "logReport: " + getReport());
+    }
+}
@@ -0,0 +1,135 @@
+package com.peterponterio.flickrbrowser;
+
+import android.content.Context;
+import android.content.res.ColorStateList;
+import android.content.res.TypedArray;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.text.Layout;
+import android.text.TextPaint;
+import android.util.AttributeSet;
+import android.util.TypedValue;
+import android.view.View;
+
+/*
+    Shows a photo title in a list row, using a text layout from the TitleLayoutCache.
+
+    A TextView measures and lays out its text itself every time it's set, on the main thread. This view
+    looks for a layout that was worked out in the background instead, and only lays the text out itself
+    if there isn't one. When the new title is the same height as the old one it doesn't even ask for
+    the row to be laid out again.
+
+    It understands the few TextView attributes our rows use: textSize, textColor, maxLines and lines.
+    Anything it doesn't understand is ignored, so it's only meant for the rows.
+ */
+class TitleView extends View {
+
+    //must stay in ascending order of attribute id for obtainStyledAttributes
+    private static final int[] ATTRS = {
+            android.R.attr.textSize,
+            android.R.attr.textColor,
+            android.R.attr.maxLines,
+            android.R.attr.lines
+    };
+
+    //the same as a TextView with the small text appearance, which is what the rows had before
+    private static final float DEFAULT_TEXT_SIZE_SP = 14f;
+
+    private final TextPaint mPaint = new TextPaint(Paint.ANTI_ALIAS_FLAG);
+    private int mMaxLines = 0; //0 for no limit
+    private int mLines = 0;
+    private CharSequence mText = "";
+    private Layout mLayout = null;
+    private TitleLayoutCache.Spec mSpec = null;
+
+    public TitleView(Context context) {
+        this(context, null);
+    }
+
+    public TitleView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+        mPaint.density = getResources().getDisplayMetrics().density;
+
+        TypedArray a = context.obtainStyledAttributes(attrs, ATTRS);
+        float defaultSize = TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_SP, DEFAULT_TEXT_SIZE_SP,
+                getResources().getDisplayMetrics());
+        mPaint.setTextSize(a.getDimension(0, defaultSize));
+        ColorStateList colors = a.getColorStateList(1);
+        mLines = a.getInt(3, 0);
+        mMaxLines = a.getInt(2, mLines);
+        a.recycle();
+
+        if(colors == null) {
+            TypedArray theme = context.obtainStyledAttributes(new int[]{android.R.attr.textColorSecondary});
+            colors = theme.getColorStateList(0);
+            theme.recycle();
+        }
+        if(colors != null) {
+            mPaint.setColor(colors.getDefaultColor());
+        }
+    }
+
+
+    void setText(CharSequence text) {
+        if(text == null) {
+            text = "";
+        }
+        if(text.equals(mText)) {
+            return;
+        }
+        mText = text;
+        setContentDescription(text);
+
+        //a ready layout for the width we had last time means nothing needs measuring here
+        Layout ready = (mSpec != null) ? TitleLayoutCache.get(text, mSpec) : null;
+        boolean sameHeight = ready != null && mLayout != null && ready.getHeight() == mLayout.getHeight();
+        mLayout = ready;
+        if(!sameHeight) {
+            requestLayout();
+        }
+        invalidate();
+    }
+
+    CharSequence getText() {
+        return mText;
+    }
+
+
+    @Override
+    protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
+        int width;
+        if(MeasureSpec.getMode(widthMeasureSpec) == MeasureSpec.UNSPECIFIED) {
+            width = (int) Math.ceil(Layout.getDesiredWidth(mText, mPaint)) + getPaddingLeft() + getPaddingRight();
+        } else {
+            width = MeasureSpec.getSize(widthMeasureSpec);
+        }
+
+        int textWidth = Math.max(0, width - getPaddingLeft() - getPaddingRight());
+        if(mSpec == null || mSpec.mWidth != textWidth) {
+            mSpec = TitleLayoutCache.addSpec(mPaint, textWidth, mMaxLines);
+            mLayout = null;
+        }
+        if(mLayout == null) {
+            mLayout = TitleLayoutCache.obtain(mText, mSpec, mPaint);
+        }
+
+        int height = mLayout.getHeight();
+        if(mLines > 0) {
+            height = Math.max(height, mLines * mPaint.getFontMetricsInt(null));
+        }
+        height += getPaddingTop() + getPaddingBottom();
+        setMeasuredDimension(width, resolveSize(height, heightMeasureSpec));
+    }
+
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        if(mLayout == null) {
+            return;
+        }
+        canvas.save();
+        canvas.translate(getPaddingLeft(), getPaddingTop());
+        mLayout.draw(canvas);
+        canvas.restore();
+    }
+}